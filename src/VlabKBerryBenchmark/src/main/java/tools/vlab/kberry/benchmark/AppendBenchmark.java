@@ -0,0 +1,68 @@
+package tools.vlab.kberry.benchmark;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.openjdk.jmh.annotations.*;
+import tools.vlab.kberry.server.statistics.TemperaturStatistics;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durchsatz von {@code Statistic.append}: je Operation ein Wert, gewartet wird je Minute über alle Sensoren,
+ * so wie der Scheduler schreibt. Gestartet wird mit leerer Statistik.
+ * Allokationen: {@code java -jar benchmarks.jar AppendBenchmark -prof gc}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AppendBenchmark {
+
+    @Param({"CSV", "BINARY", "GORILLA"})
+    public StorageFormat format;
+
+    @Param({"50"})
+    public int sensors;
+
+    private Vertx vertx;
+    private TemperaturStatistics temperature;
+    private long timestamp;
+    private int sensor;
+    private final List<Future<Void>> pending = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path directory = Path.of(System.getProperty("benchmark.dir", "target/benchmark-data"), "append-" + format.name().toLowerCase());
+        SyntheticData.deleteRecursively(directory);
+        vertx = Vertx.vertx();
+        temperature = new TemperaturStatistics(vertx, SyntheticData.options(directory, format));
+        temperature.start().await();
+        timestamp = System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Future.all(pending).await();
+        temperature.stop().await();
+        vertx.close().await();
+    }
+
+    @Benchmark
+    public void append() {
+        pending.add(temperature.append(timestamp, new TemperaturStatistics.TemperatureEntry(
+                "bench/floor0/room" + sensor + "/sensor", SyntheticData.temperature(sensor, timestamp))));
+        if (++sensor == sensors) {
+            sensor = 0;
+            timestamp += SyntheticData.INTERVAL_MS;
+            Future.all(pending).await();
+            pending.clear();
+        }
+    }
+}
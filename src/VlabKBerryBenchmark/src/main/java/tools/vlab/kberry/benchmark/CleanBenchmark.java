@@ -0,0 +1,70 @@
+package tools.vlab.kberry.benchmark;
+
+import io.vertx.core.Vertx;
+import org.openjdk.jmh.annotations.*;
+import tools.vlab.kberry.server.statistics.TemperaturStatistics;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code cleanOlderThanDays} auf einer frischen Kopie des erzeugten Bestands ({@link SyntheticData}).
+ * Das Kopieren und Starten je Aufruf wird nicht gemessen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CleanBenchmark {
+
+    @Param({"CSV", "BINARY", "GORILLA"})
+    public StorageFormat format;
+
+    @Param({"20"})
+    public int sensors;
+
+    @Param({"365"})
+    public int days;
+
+    /**
+     * Tage, die erhalten bleiben. Die Grenze liegt mitten in einem Segment, das neu geschrieben wird.
+     */
+    @Param({"30"})
+    public int keepDays;
+
+    private Vertx vertx;
+    private SyntheticData data;
+    private TemperaturStatistics temperature;
+
+    @Setup(Level.Trial)
+    public void setUpData() throws IOException {
+        vertx = Vertx.vertx();
+        data = SyntheticData.prepare(vertx, format, sensors, days);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        Path copy = data.copyTo(data.directory().resolveSibling(data.directory().getFileName() + "-clean"));
+        temperature = new TemperaturStatistics(vertx, SyntheticData.options(copy, format));
+        temperature.start().await();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        temperature.stop().await();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownData() {
+        vertx.close().await();
+    }
+
+    @Benchmark
+    public void cleanOlderThanDays() {
+        temperature.cleanOlderThanDays(keepDays).await();
+    }
+}
@@ -0,0 +1,127 @@
+package tools.vlab.kberry.benchmark;
+
+import io.vertx.core.Vertx;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.Statistics;
+import tools.vlab.kberry.server.statistics.TimeSeries;
+import tools.vlab.kberry.server.statistics.storage.PathFilter;
+import tools.vlab.kberry.server.statistics.storage.Segment;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latenz von Bereichsabfragen über einen erzeugten Bestand ({@link SyntheticData}) für die letzte Stunde,
+ * den letzten Tag und das letzte Jahr vor dessen Ende. Die Bereiche beginnen absichtlich nicht auf
+ * einer vollen Stunde, damit Ränder aus den Rohdaten gelesen werden.
+ * Der Abfrage-Cache ist abgeschaltet, sonst misst jede Wiederholung nur den Cache.
+ * Allokationen: {@code java -jar benchmarks.jar QueryBenchmark -prof gc}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+    public enum Range {
+        HOUR(60 * 60 * 1000L),
+        DAY(Segment.DAY_MS),
+        YEAR(365 * Segment.DAY_MS);
+
+        private final long span;
+
+        Range(long span) {
+            this.span = span;
+        }
+    }
+
+    @Param({"CSV", "BINARY", "GORILLA"})
+    public StorageFormat format;
+
+    @Param({"HOUR", "DAY", "YEAR"})
+    public Range range;
+
+    @Param({"20"})
+    public int sensors;
+
+    @Param({"365"})
+    public int days;
+
+    private Vertx vertx;
+    private Statistics statistics;
+    private long from;
+    private long to;
+    private PathFilter sensor;
+    private PositionPath room;
+    private PositionPath floor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        vertx = Vertx.vertx();
+        SyntheticData data = SyntheticData.prepare(vertx, format, sensors, days);
+        statistics = new Statistics(vertx, SyntheticData.options(data.directory(), format).setQueryCacheBytes(0));
+        statistics.getTemperatur().start()
+                .compose(v -> statistics.getVoc().start())
+                .await();
+        to = data.end() - 1 - 7 * 60 * 1000L;
+        from = Math.max(data.start(), to - range.span);
+        sensor = PathFilter.exact(data.sensorPath(0));
+        room = SyntheticData.position(data.sensorPath(0));
+        floor = SyntheticData.position("bench/floor0");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        statistics.getTemperatur().stop()
+                .compose(v -> statistics.getVoc().stop())
+                .await();
+        vertx.close().await();
+    }
+
+    /**
+     * Rohwerte eines Sensors
+     */
+    @Benchmark
+    public TimeSeries getValues() {
+        return statistics.getTemperatur().getValues(from, to, sensor).await();
+    }
+
+    /**
+     * Rohwerte aller Sensoren
+     */
+    @Benchmark
+    public TimeSeries getValuesAll() {
+        return statistics.getTemperatur().getValues(from, to).await();
+    }
+
+    /**
+     * Durchschnitt eines Fühlers aus Rollups und Rändern
+     */
+    @Benchmark
+    public double temperatureAverage() {
+        return statistics.getTemperatur().calculateAverage(from, to, room).await();
+    }
+
+    /**
+     * Durchschnitt über alle Räume eines Stockwerks
+     */
+    @Benchmark
+    public double co2Average() {
+        return statistics.getVoc().calculateAverage(from, to, floor).await();
+    }
+
+    /**
+     * Perzentile aus den Histogrammen
+     */
+    @Benchmark
+    public void co2Percentiles(Blackhole blackhole) {
+        var histogram = statistics.getVoc().getDistribution(from, to, floor).await();
+        blackhole.consume(histogram.quantile(0.5));
+        blackhole.consume(histogram.quantile(0.95));
+    }
+}
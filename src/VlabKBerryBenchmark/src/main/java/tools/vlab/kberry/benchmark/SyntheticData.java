@@ -0,0 +1,206 @@
+package tools.vlab.kberry.benchmark;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.StatisticOptions;
+import tools.vlab.kberry.server.statistics.Statistics;
+import tools.vlab.kberry.server.statistics.TemperaturStatistics;
+import tools.vlab.kberry.server.statistics.VOCStatistics;
+import tools.vlab.kberry.server.statistics.storage.Segment;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reproduzierbare Messwerte für Benchmarks: ein Temperatur- und ein CO2-Sensor je Raum,
+ * ein Wert pro Minute über days Tage bis Mitternacht (UTC) des aktuellen Tages.
+ * Ein vollständig erzeugter Bestand wird wiederverwendet, solange Format, Sensoren und Tage gleich sind.
+ */
+public final class SyntheticData {
+
+    private static final Logger Log = LoggerFactory.getLogger(SyntheticData.class);
+    public static final long INTERVAL_MS = 60 * 1000L;
+    private static final String COMPLETE = "synthetic.done";
+    // so viele Werte werden angehängt, bevor auf das Schreiben gewartet wird
+    private static final int BATCH = 20_000;
+
+    private final Path directory;
+    private final int sensors;
+    private final int days;
+    private final long end;
+
+    private SyntheticData(Path directory, int sensors, int days, long end) {
+        this.directory = directory;
+        this.sensors = sensors;
+        this.days = days;
+        this.end = end;
+    }
+
+    /**
+     * Verzeichnis unter {@code benchmark.dir} (Standard "target/benchmark-data") je Format und Umfang
+     */
+    public static Path directoryOf(StorageFormat format, int sensors, int days) {
+        return Path.of(System.getProperty("benchmark.dir", "target/benchmark-data"),
+                format.name().toLowerCase() + "-" + sensors + "x" + days);
+    }
+
+    public static StatisticOptions options(Path directory, StorageFormat format) {
+        return new StatisticOptions()
+                .setDirectory(directory.toString())
+                .setFormat(format);
+    }
+
+    /**
+     * Erzeugt den Bestand oder verwendet einen vorhandenen
+     */
+    public static SyntheticData prepare(Vertx vertx, StorageFormat format, int sensors, int days) throws IOException {
+        Path directory = directoryOf(format, sensors, days);
+        Path marker = directory.resolve(COMPLETE);
+        if (Files.exists(marker)) {
+            return new SyntheticData(directory, sensors, days, Long.parseLong(Files.readString(marker).trim()));
+        }
+        long end = Instant.now().truncatedTo(ChronoUnit.DAYS).toEpochMilli();
+        SyntheticData data = new SyntheticData(directory, sensors, days, end);
+        deleteRecursively(directory);
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        Statistics statistics = new Statistics(vertx, options(directory, format));
+        statistics.getTemperatur().start()
+                .compose(v -> statistics.getVoc().start())
+                .await();
+        data.fill(statistics.getTemperatur(), statistics.getVoc(), data.start(), end);
+        statistics.getTemperatur().stop()
+                .compose(v -> statistics.getVoc().stop())
+                .await();
+        Files.writeString(marker, Long.toString(end));
+        Log.info("Generated {} rows in {} in {} s", 2L * sensors * days * Segment.DAY_MS / INTERVAL_MS, directory,
+                (System.nanoTime() - started) / 1_000_000_000);
+        return data;
+    }
+
+    /**
+     * Kopiert den Bestand, z.B. für Benchmarks, die Daten entfernen
+     */
+    public Path copyTo(Path target) throws IOException {
+        deleteRecursively(target);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.toList()) {
+                Path copy = target.resolve(directory.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(file, copy);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Hängt alle Werte in [from, to) an, Minute für Minute über alle Sensoren
+     */
+    public void fill(TemperaturStatistics temperature, VOCStatistics voc, long from, long to) {
+        List<Future<Void>> pending = new ArrayList<>(BATCH);
+        for (long ts = from; ts < to; ts += INTERVAL_MS) {
+            for (int sensor = 0; sensor < sensors; sensor++) {
+                pending.add(temperature.append(ts, new TemperaturStatistics.TemperatureEntry(sensorPath(sensor), temperature(sensor, ts))));
+                pending.add(voc.append(ts, new VOCStatistics.VOCEntry(sensorPath(sensor), co2(sensor, ts))));
+            }
+            if (pending.size() >= BATCH) {
+                Future.all(pending).await();
+                pending.clear();
+            }
+        }
+        Future.all(pending).await();
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    public int sensors() {
+        return sensors;
+    }
+
+    public int days() {
+        return days;
+    }
+
+    public long start() {
+        return end - days * Segment.DAY_MS;
+    }
+
+    /**
+     * Mitternacht nach dem letzten Wert
+     */
+    public long end() {
+        return end;
+    }
+
+    public String roomPath(int sensor) {
+        return "bench/floor" + (sensor / 10) + "/room" + sensor;
+    }
+
+    public String sensorPath(int sensor) {
+        return roomPath(sensor) + "/sensor";
+    }
+
+    /**
+     * Position für die Abfragen der Statistiken, die nur den Pfad benötigen
+     */
+    public static PositionPath position(String path) {
+        return (PositionPath) Proxy.newProxyInstance(PositionPath.class.getClassLoader(), new Class<?>[]{PositionPath.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getPath", "toString" -> path;
+                    case "hashCode" -> path.hashCode();
+                    case "equals" -> proxy == args[0];
+                    default -> method.getReturnType() == boolean.class ? false : null;
+                });
+    }
+
+    /**
+     * Tagesgang um 21 °C mit Rauschen, je Sensor versetzt
+     */
+    static double temperature(int sensor, long ts) {
+        double day = (double) Math.floorMod(ts, Segment.DAY_MS) / Segment.DAY_MS;
+        return Math.round((21 + 2 * Math.sin(2 * Math.PI * day + sensor) + noise(sensor, ts)) * 10) / 10.0;
+    }
+
+    /**
+     * Grundlast 450 ppm, tagsüber belegt bis etwa 1400 ppm
+     */
+    static double co2(int sensor, long ts) {
+        long minute = Math.floorMod(ts, Segment.DAY_MS) / INTERVAL_MS;
+        double occupied = minute > 8 * 60 && minute < 18 * 60 ? 800 * Math.sin(Math.PI * (minute - 8 * 60) / 600.0) : 0;
+        return Math.round(450 + occupied + 50 * noise(sensor, ts));
+    }
+
+    private static double noise(int sensor, long ts) {
+        long hash = (ts / INTERVAL_MS) * 0x9E3779B97F4A7C15L + sensor * 0xC2B2AE3D27D4EB4FL;
+        hash ^= hash >>> 31;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 29;
+        return ((hash >>> 11) / (double) (1L << 53)) - 0.5;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package tools.vlab.kberry.server;
 
 import io.vertx.core.Vertx;
+import io.vertx.ext.mail.MailConfig;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,14 +17,23 @@ import tools.vlab.kberry.server.logic.LogicEngine;
 import tools.vlab.kberry.server.scheduler.ScheduleEngine;
 import tools.vlab.kberry.server.scheduler.Scheduler;
 import tools.vlab.kberry.server.serviceProvider.*;
+import tools.vlab.kberry.server.statistics.StatisticOptions;
 import tools.vlab.kberry.server.statistics.Statistics;
 import tools.vlab.kberry.server.statistics.StatisticsScheduler;
+import tools.vlab.kberry.server.statistics.alerts.AlertEngine;
+import tools.vlab.kberry.server.statistics.alerts.AlertRule;
+import tools.vlab.kberry.server.statistics.alerts.MailAlertNotifier;
+import tools.vlab.kberry.server.statistics.alerts.MqttAlertNotifier;
+import tools.vlab.kberry.server.statistics.storage.RetentionPolicy;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class KBerryServer {
@@ -39,13 +49,16 @@ public class KBerryServer {
     private final LogicEngine logicEngine;
     @Getter
     private final Statistics statistics;
+    @Getter
+    private final AlertEngine alerts;
 
-    private KBerryServer(SerialBAOSConnection connection, KNXDevices devices, CommandController commandController, LogicEngine logicEngine, Statistics statistics) {
+    private KBerryServer(SerialBAOSConnection connection, KNXDevices devices, CommandController commandController, LogicEngine logicEngine, Statistics statistics, AlertEngine alerts) {
         this.connection = connection;
         this.devices = devices;
         this.commandController = commandController;
         this.logicEngine = logicEngine;
         this.statistics = statistics;
+        this.alerts = alerts;
     }
 
     public void startListening() {
@@ -55,6 +68,11 @@ public class KBerryServer {
 
     public void shutdown() {
         logicEngine.stop();
+        try {
+            statistics.stop().await(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.error("Flush statistics failed!", e);
+        }
         connection.disconnect();
     }
 
@@ -76,6 +94,11 @@ public class KBerryServer {
         private final ScheduleEngine scheduler = new ScheduleEngine();
         private GoogleCalendarService googleCalendarServiceProvider;
         private IcloudCalendarService icloudCalenderService;
+        private StatisticOptions statisticOptions = new StatisticOptions();
+        private final List<AlertRule> alertRules = new ArrayList<>();
+        private MailConfig alertMailConfig;
+        private String alertMailFrom;
+        private List<String> alertMailTo;
 
         public Builder(SerialBAOSConnection connection, KNXDevices devices, String mqttAddress, int mqttPort) {
             this.connection = connection;
@@ -110,6 +133,36 @@ public class KBerryServer {
             return this;
         }
 
+        public Builder statisticsFormat(StorageFormat format) {
+            this.statisticOptions.setFormat(format);
+            return this;
+        }
+
+        public Builder statisticsRetention(RetentionPolicy retention) {
+            this.statisticOptions.setRetention(retention);
+            return this;
+        }
+
+        public Builder statisticOptions(StatisticOptions options) {
+            this.statisticOptions = options;
+            return this;
+        }
+
+        /**
+         * Alarm auf den laufenden Werten einer Statistik, gemeldet per MQTT unter "alert/..." und ggf. per Mail
+         */
+        public Builder alert(AlertRule rule) {
+            this.alertRules.add(rule);
+            return this;
+        }
+
+        public Builder alertMail(MailConfig config, String from, List<String> to) {
+            this.alertMailConfig = config;
+            this.alertMailFrom = from;
+            this.alertMailTo = to;
+            return this;
+        }
+
         public Builder setGoogleCalendar(Path credPath, String userId, String calendarId, String tokenPath) throws IOException {
             this.icloudCalenderService = null;
             this.googleCalendarServiceProvider = GoogleCalendarService.fromCredentialsFile(credPath, userId, calendarId, tokenPath);
@@ -135,7 +188,7 @@ public class KBerryServer {
             Vertx vertx = Vertx.vertx();
 
             // Statistics
-            Statistics statistics = new Statistics(vertx);
+            Statistics statistics = new Statistics(vertx, statisticOptions);
             var statisticsScheduler = new StatisticsScheduler(statistics, devices);
 
             Log.info("KBerryServer Service Provider ...");
@@ -160,6 +213,16 @@ public class KBerryServer {
             var controller = new CommandController(mqttHost, mqttPort, devices, statistics, serviceProvider, scheduler, logicEngine);
             commands.forEach(controller::register);
 
+            // Alerts
+            Log.info("KBerryServer Alerts ...");
+            var alerts = new AlertEngine(vertx);
+            alertRules.forEach(alerts::addRule);
+            alerts.addNotifier(new MqttAlertNotifier(controller::getClient));
+            if (alertMailConfig != null) {
+                alerts.addNotifier(new MailAlertNotifier(vertx, alertMailConfig, alertMailFrom, alertMailTo));
+            }
+            alerts.attach(statistics);
+
             Log.info("KBerryServer Deploy Verticles ...");
             return vertx.deployVerticle(statisticsScheduler)
                     .compose(ignore -> vertx.deployVerticle(weatherServiceProvider))
@@ -168,7 +231,7 @@ public class KBerryServer {
                     .compose(ignore -> vertx.deployVerticle(scheduler))
                     .map(ignore -> {
                         Log.info("KBerryServer Build Done ...");
-                        return new KBerryServer(connection, devices, controller, logicEngine, statistics);
+                        return new KBerryServer(connection, devices, controller, logicEngine, statistics, alerts);
                     })
                     .await();
         }
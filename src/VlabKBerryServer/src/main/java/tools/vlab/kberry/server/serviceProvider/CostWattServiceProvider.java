@@ -1,6 +1,6 @@
 package tools.vlab.kberry.server.serviceProvider;
 
 public interface CostWattServiceProvider {
-    double calculateCost(double consumptionLastDay);
-    double calculateSavings(double consumptionLastDay);
+    double calculateCost(double consumptionKWh);
+    double calculateSavings(double consumptionKWh);
 }
@@ -0,0 +1,30 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.Rollup;
+
+/**
+ * Kennzahlen, die eine Sammelabfrage je Pfad liefern kann
+ */
+public enum Aggregation {
+    COUNT,
+    SUM,
+    AVERAGE,
+    MIN,
+    MAX;
+
+    /**
+     * @return Kennzahl der Werte, NaN wenn keine Werte vorliegen
+     */
+    public double of(Rollup rollup) {
+        if (rollup == null || rollup.isEmpty()) {
+            return this == COUNT ? 0 : Double.NaN;
+        }
+        return switch (this) {
+            case COUNT -> rollup.count();
+            case SUM -> rollup.sum();
+            case AVERAGE -> rollup.average();
+            case MIN -> rollup.min();
+            case MAX -> rollup.max();
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package tools.vlab.kberry.server.statistics;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Wie die Werte einer Statistik erfasst werden.
+ * PERIODIC schreibt jede Minute jeden Sensor, ON_CHANGE nur, wenn sich ein Wert um mehr als
+ * deadband vom zuletzt geschriebenen entfernt, spätestens aber nach heartbeat.
+ * Mittelwerte werden je geschriebenem Wert gebildet, bei ON_CHANGE also nicht zeitgewichtet.
+ */
+public record Capture(Mode mode, double deadband, Duration heartbeat) {
+
+    public enum Mode {
+        PERIODIC,
+        ON_CHANGE
+    }
+
+    public static final Capture PERIODIC = new Capture(Mode.PERIODIC, 0, Duration.ofMinutes(1));
+    public static final Duration DEFAULT_HEARTBEAT = Duration.ofMinutes(15);
+
+    // übliche Messgenauigkeit je Statistik (siehe Statistic#getName())
+    private static final Map<String, Double> DEFAULT_DEADBANDS = Map.of(
+            "temperature", 0.2,
+            "humidity", 1.0,
+            "voc", 50.0,
+            "electricity", 0.01,
+            "presence", 0.0);
+
+    public static Capture onChange(double deadband, Duration heartbeat) {
+        return new Capture(Mode.ON_CHANGE, deadband, heartbeat);
+    }
+
+    /**
+     * ON_CHANGE mit der üblichen Schwelle der Statistik und {@link #DEFAULT_HEARTBEAT}
+     */
+    public static Capture onChange(String statistic) {
+        return onChange(DEFAULT_DEADBANDS.getOrDefault(statistic, 0.0), DEFAULT_HEARTBEAT);
+    }
+
+    public boolean isOnChange() {
+        return mode == Mode.ON_CHANGE;
+    }
+
+    /**
+     * Längster erwarteter Abstand zweier Werte eines Sensors, danach gilt der letzte Wert als veraltet.
+     * Bei ON_CHANGE kommen unveränderte Werte nur mit dem Heartbeat, daher Heartbeat plus eine Minute Spielraum.
+     */
+    public long maxGapMs() {
+        long periodic = 5 * 60 * 1000L;
+        if (!isOnChange()) return periodic;
+        return Math.max(periodic, heartbeat.toMillis() + 60 * 1000L);
+    }
+}
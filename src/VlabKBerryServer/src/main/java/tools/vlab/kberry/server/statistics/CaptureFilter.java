@@ -0,0 +1,37 @@
+package tools.vlab.kberry.server.statistics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Entscheidet je Pfad, ob ein Wert bei {@link Capture.Mode#ON_CHANGE} geschrieben wird
+ */
+class CaptureFilter {
+
+    private record Recorded(long timestamp, double value) {
+    }
+
+    private final double deadband;
+    private final long heartbeatMs;
+    private final Map<String, Recorded> recorded = new HashMap<>();
+
+    CaptureFilter(Capture capture) {
+        this.deadband = capture.deadband();
+        this.heartbeatMs = capture.heartbeat().toMillis();
+    }
+
+    /**
+     * @return true, wenn der Wert geschrieben werden soll. Er gilt dann als zuletzt geschrieben.
+     */
+    synchronized boolean accept(String positionPath, double value, long now) {
+        Recorded last = recorded.get(positionPath);
+        boolean changed = last == null
+                || Math.abs(value - last.value()) > deadband
+                || Double.isNaN(value) != Double.isNaN(last.value())
+                || now - last.timestamp() >= heartbeatMs;
+        if (changed) {
+            recorded.put(positionPath, new Recorded(now, value));
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,198 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.SampleConsumer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reduziert Rohwerte im Durchlauf auf höchstens maxPoints Punkte je Series.
+ * [from, to] wird in gleich lange Zeitabschnitte geteilt, je Series werden nur der laufende
+ * und der vorherige Abschnitt gehalten. Die Werte müssen je Series zeitlich geordnet ankommen,
+ * Nachzügler für bereits abgeschlossene Abschnitte werden verworfen.
+ */
+final class Downsampler implements SampleConsumer {
+
+    private final long from;
+    private final long width;
+    private final int buckets;
+    private final Downsampling method;
+    private final Map<String, Series> series = new HashMap<>();
+    private final TimeSeries.Builder result;
+
+    Downsampler(long from, long to, int maxPoints, Downsampling method) {
+        int minPoints = method == Downsampling.LTTB ? 3 : 2;
+        if (maxPoints < minPoints) {
+            throw new IllegalArgumentException(method + " needs at least " + minPoints + " points, got " + maxPoints);
+        }
+        // LTTB: erster und letzter Punkt kommen zu den Abschnitten hinzu, MIN_MAX: zwei Punkte je Abschnitt
+        this.buckets = method == Downsampling.LTTB ? maxPoints - 2 : maxPoints / 2;
+        this.from = from;
+        this.width = Math.max(1, Math.floorDiv(to - from, buckets) + 1);
+        this.method = method;
+        this.result = new TimeSeries.Builder(Math.min(maxPoints, 1024));
+    }
+
+    @Override
+    public void accept(long timestamp, String positionPath, double value) {
+        Series state = series.get(positionPath);
+        if (state == null) {
+            state = new Series(positionPath);
+            series.put(positionPath, state);
+        }
+        long bucket = Math.min(buckets - 1, Math.max(0, Math.floorDiv(timestamp - from, width)));
+        state.add(bucket, timestamp, value);
+    }
+
+    TimeSeries finish() {
+        series.values().forEach(Series::finish);
+        return result.build();
+    }
+
+    private final class Series {
+
+        private final String positionPath;
+        private long bucket = -1;
+        private Points current = new Points();
+        private Points previous = new Points();
+        // zuletzt ausgegebener Punkt, Ausgangspunkt des nächsten Dreiecks
+        private long anchorTimestamp;
+        private double anchorValue;
+        private boolean anchored;
+
+        private Series(String positionPath) {
+            this.positionPath = positionPath;
+        }
+
+        private void add(long bucket, long timestamp, double value) {
+            if (bucket < this.bucket) return;
+            if (method == Downsampling.LTTB && !anchored) {
+                emit(timestamp, value);
+                return;
+            }
+            if (bucket > this.bucket) {
+                closeBucket();
+                this.bucket = bucket;
+            }
+            current.add(timestamp, value);
+        }
+
+        private void closeBucket() {
+            if (current.size == 0) return;
+            if (method == Downsampling.MIN_MAX) {
+                emitMinMax(current);
+                current.clear();
+                return;
+            }
+            if (previous.size > 0) {
+                selectLargestTriangle(previous, 0, previous.size, current.averageTimestamp(), current.averageValue());
+            }
+            Points swap = previous;
+            previous = current;
+            current = swap;
+            current.clear();
+        }
+
+        private void finish() {
+            if (method == Downsampling.MIN_MAX) {
+                emitMinMax(current);
+                return;
+            }
+            if (current.size == 0) {
+                // nur der erste Punkt oder ein abgeschlossener Abschnitt ohne Nachfolger
+                current = previous;
+                previous = new Points();
+            }
+            if (current.size == 0) return;
+            int last = current.size - 1;
+            if (previous.size > 0) {
+                selectLargestTriangle(previous, 0, previous.size, current.averageTimestamp(), current.averageValue());
+            }
+            if (last > 0) {
+                selectLargestTriangle(current, 0, last, current.timestamps[last], current.values[last]);
+            }
+            emit(current.timestamps[last], current.values[last]);
+        }
+
+        private void selectLargestTriangle(Points points, int start, int end, double nextTimestamp, double nextValue) {
+            // Zeitstempel relativ zu from, damit die Flächen genau bleiben
+            double ax = anchorTimestamp - from;
+            double cx = nextTimestamp - from;
+            int selected = start;
+            double largest = -1;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((ax - cx) * (points.values[i] - anchorValue)
+                        - (ax - (points.timestamps[i] - from)) * (nextValue - anchorValue));
+                if (area > largest) {
+                    largest = area;
+                    selected = i;
+                }
+            }
+            emit(points.timestamps[selected], points.values[selected]);
+        }
+
+        private void emitMinMax(Points points) {
+            if (points.size == 0) return;
+            int min = 0;
+            int max = 0;
+            for (int i = 1; i < points.size; i++) {
+                if (points.values[i] < points.values[min]) min = i;
+                if (points.values[i] > points.values[max]) max = i;
+            }
+            int first = Math.min(min, max);
+            int second = Math.max(min, max);
+            emit(points.timestamps[first], points.values[first]);
+            if (second != first) {
+                emit(points.timestamps[second], points.values[second]);
+            }
+        }
+
+        private void emit(long timestamp, double value) {
+            result.add(timestamp, positionPath, value);
+            anchorTimestamp = timestamp;
+            anchorValue = value;
+            anchored = true;
+        }
+    }
+
+    /**
+     * Punkte eines Abschnitts in wiederverwendeten Arrays
+     */
+    private static final class Points {
+
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size;
+
+        private void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private double averageTimestamp() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += timestamps[i];
+            }
+            return sum / size;
+        }
+
+        private double averageValue() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum / size;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package tools.vlab.kberry.server.statistics;
+
+/**
+ * Verfahren, mit dem eine Abfrage auf wenige Punkte je Series reduziert wird
+ */
+public enum Downsampling {
+    /**
+     * Largest-Triangle-Three-Buckets: je Zeitabschnitt der Punkt, der den Verlauf am besten erhält
+     */
+    LTTB,
+    /**
+     * Je Zeitabschnitt Minimum und Maximum, Spitzen bleiben vollständig erhalten
+     */
+    MIN_MAX
+}
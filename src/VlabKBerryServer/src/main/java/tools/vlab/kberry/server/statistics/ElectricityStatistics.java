@@ -4,22 +4,92 @@ import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import tools.vlab.kberry.core.PositionPath;
 import tools.vlab.kberry.server.serviceProvider.CostWattServiceProvider;
+import tools.vlab.kberry.server.statistics.storage.MeterDeltas;
+import tools.vlab.kberry.server.statistics.storage.PathFilter;
+import tools.vlab.kberry.server.statistics.storage.Rollup;
+import tools.vlab.kberry.server.statistics.storage.RollupStore;
+import tools.vlab.kberry.server.statistics.storage.SampleConsumer;
+import tools.vlab.kberry.server.statistics.storage.Segment;
+import tools.vlab.kberry.server.statistics.storage.SeriesDictionary;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
- * Statistik über Stromverbrauch pro Raum
+ * Statistik über Stromverbrauch pro Raum.
+ * Gespeichert werden die Zählerstände, beim Anhängen wird daraus der Verbrauch seit der
+ * letzten Ablesung berechnet und als Stunden- und Tagessumme je Zähler fortgeschrieben.
  */
 public class ElectricityStatistics
         extends Statistic<ElectricityStatistics.ElectricityEntry> {
 
+    private final double meterRollover;
+    private final MeterDeltas deltas;
+    private final RollupStore consumption;
+
     public ElectricityStatistics(Vertx vertx) {
-        super(vertx, "stat/electricity.csv");
+        this(vertx, new StatisticOptions());
+    }
+
+    public ElectricityStatistics(Vertx vertx, StatisticOptions options) {
+        this(vertx, "stat/electricity.csv", options);
     }
 
     public ElectricityStatistics(Vertx vertx, String path) {
-        super(vertx, path);
+        this(vertx, path, new StatisticOptions());
+    }
+
+    public ElectricityStatistics(Vertx vertx, String path, StatisticOptions options) {
+        super(vertx, path, options);
+        this.meterRollover = options.getMeterRollover();
+        this.deltas = new MeterDeltas(meterRollover);
+        this.consumption = new RollupStore(vertx, directory, "consumption", options.getWritePolicy());
+    }
+
+    /**
+     * Lädt die Verbrauchssummen und rechnet fehlende aus den Zählerständen nach.
+     * Der Zählerstand vor dem Nachrechnen wird aus dem Tag davor übernommen.
+     */
+    @Override
+    public Future<Void> start() {
+        return super.start()
+                .compose(v -> consumption.load())
+                .compose(replayFrom -> scan(replayFrom - Segment.DAY_MS, replayFrom - 1, path -> true, deltas::seed)
+                        .compose(v -> scan(replayFrom, Long.MAX_VALUE, path -> true, (ts, path, meter) -> {
+                            double delta = deltas.delta(ts, path, meter);
+                            if (!Double.isNaN(delta)) {
+                                consumption.replay(ts, path, delta);
+                            }
+                        })));
+    }
+
+    @Override
+    public Future<Void> stop() {
+        return super.stop()
+                .compose(v -> consumption.stop());
+    }
+
+    /**
+     * Der Verbrauch wird erst fortgeschrieben, wenn der Zählerstand gespeichert ist,
+     * damit die Zählerstände im Speicher nicht den Rohdaten vorauslaufen
+     */
+    @Override
+    public Future<Void> append(long timestamp, ElectricityEntry value) {
+        String path = SeriesDictionary.normalize(value.positionPath());
+        return super.append(timestamp, value)
+                .onSuccess(v -> {
+                    double delta = deltas.delta(timestamp, path, value.power());
+                    if (!Double.isNaN(delta)) {
+                        consumption.add(timestamp, path, delta);
+                    }
+                });
     }
 
     @Override
@@ -36,15 +106,92 @@ public class ElectricityStatistics
     // Verbrauchsberechnung
     // ───────────────────────────────
 
-    private Future<Double> calculateConsumption(long from, long to, PositionPath positionPath) {
-        return getValues(from, to)
-                .map(values ->
-                        values.values().stream()
-                                .filter(e -> e.positionPath().equalsIgnoreCase(positionPath.getPath()))
-                                .mapToDouble(ElectricityEntry::power)
-                                .average()
-                                .orElse(0.0)
-                );
+    /**
+     * Verbrauch (kWh) aller Zähler unterhalb von positionPath. Ganze Stunden und Tage kommen aus den
+     * Verbrauchssummen, angebrochene Stunden am Rand aus den Zählerständen.
+     */
+    public Future<Double> calculateConsumption(long from, long to, PositionPath positionPath) {
+        PathFilter filter = pathPrefix(positionPath);
+        RollupStore.Coverage coverage = consumption.cover(from, to, filter);
+        Rollup result = coverage.rollup();
+        return consumeEdges(coverage.gaps(), filter, (ts, path, delta) -> result.add(delta))
+                .map(v -> result.sum());
+    }
+
+    /**
+     * Sammelabfragen rechnen mit den Verbräuchen je Ablesung statt mit den Zählerständen,
+     * SUM ist damit der Verbrauch (kWh) im Zeitraum. Die Ränder kommen wie bei
+     * {@link #calculateConsumption} aus den Zählerständen.
+     */
+    @Override
+    protected Future<Map<String, Rollup>> aggregateBySeries(long from, long to, Predicate<String> positionPaths) {
+        RollupStore.SeriesCoverage coverage = consumption.coverBySeries(from, to, positionPaths);
+        Map<String, Rollup> result = coverage.rollups();
+        return consumeEdges(coverage.gaps(), positionPaths,
+                (ts, path, delta) -> result.computeIfAbsent(path, p -> new Rollup()).add(delta))
+                .map(result);
+    }
+
+    /**
+     * Liefert den Verbrauch je Ablesung in den Rändern
+     */
+    private Future<Void> consumeEdges(List<RollupStore.Gap> gaps, Predicate<String> positionPaths, SampleConsumer consumer) {
+        Future<Void> result = Future.succeededFuture();
+        for (RollupStore.Gap gap : gaps) {
+            result = result.compose(v -> consumeEdge(gap, positionPaths, consumer));
+        }
+        return result;
+    }
+
+    private Future<Void> consumeEdge(RollupStore.Gap gap, Predicate<String> positionPaths, SampleConsumer consumer) {
+        List<Sample> readings = new ArrayList<>();
+        MeterDeltas edge = new MeterDeltas(meterRollover);
+        return scan(gap.from(), gap.to(), positionPaths, (ts, path, meter) -> readings.add(new Sample(ts, path, meter)))
+                .compose(v -> {
+                    Set<String> paths = new HashSet<>();
+                    readings.forEach(reading -> paths.add(reading.positionPath()));
+                    return seed(edge, paths, gap.from());
+                })
+                .map(v -> {
+                    for (Sample reading : readings) {
+                        double delta = edge.delta(reading.timestamp(), reading.positionPath(), reading.value());
+                        if (!Double.isNaN(delta)) {
+                            consumer.accept(reading.timestamp(), reading.positionPath(), delta);
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Übernimmt je Series den letzten Zählerstand vor before, zuerst aus der Stunde davor.
+     * Zähler ohne Ablesung in dieser Stunde (z.B. ohne Verbrauch bei Erfassung nur bei Änderung)
+     * werden tageweise rückwärts gesucht, soweit die Rollups Werte verzeichnen.
+     */
+    private Future<Void> seed(MeterDeltas edge, Set<String> positionPaths, long before) {
+        if (positionPaths.isEmpty()) return Future.succeededFuture();
+        Set<String> missing = ConcurrentHashMap.newKeySet();
+        missing.addAll(positionPaths);
+        return scan(before - RollupStore.HOUR_MS, before - 1, positionPaths::contains, (ts, path, meter) -> {
+            edge.seed(ts, path, meter);
+            missing.remove(path);
+        }).compose(v -> {
+            Future<Void> result = Future.succeededFuture();
+            for (String path : missing) {
+                result = result.compose(ignore -> seedFromDay(edge, path, before));
+            }
+            return result;
+        });
+    }
+
+    private Future<Void> seedFromDay(MeterDeltas edge, String positionPath, long before) {
+        long day = lastDayBefore(positionPath, before);
+        if (day < 0) return Future.succeededFuture();
+        boolean[] found = {false};
+        return scan(day, before - 1, PathFilter.exact(positionPath), (ts, path, meter) -> {
+            edge.seed(ts, path, meter);
+            found[0] = true;
+        }).compose(v -> found[0] ? Future.succeededFuture() : seedFromDay(edge, positionPath, day));
     }
 
     // ───────────────────────────────
@@ -140,10 +287,14 @@ public class ElectricityStatistics
     // ───────────────────────────────
 
     /**
-     * Eintrag: PositionPath + Verbrauch
-     * (W, Wh oder kWh – je nach Speicherung)
+     * Eintrag: PositionPath + Zählerstand in kWh ({@code ElectricitySensor.getCurrentKWHMeter()})
      */
-    public record ElectricityEntry(String positionPath, double power) {
+    public record ElectricityEntry(String positionPath, double power) implements StatisticEntry {
+
+        @Override
+        public double value() {
+            return power;
+        }
 
         @Override
         public String toString() {
@@ -3,10 +3,11 @@ package tools.vlab.kberry.server.statistics;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.storage.LatestValues;
+import tools.vlab.kberry.server.statistics.storage.Rollup;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Map;
 
 public class HumidityStatistics
         extends Statistic<HumidityStatistics.HumidityEntry> {
@@ -15,6 +16,10 @@ public class HumidityStatistics
         super(vertx, "stat/humidity.csv");
     }
 
+    public HumidityStatistics(Vertx vertx, StatisticOptions options) {
+        super(vertx, "stat/humidity.csv", options);
+    }
+
     @Override
     protected String serializeValue(HumidityEntry value) {
         return value.toString();
@@ -26,24 +31,13 @@ public class HumidityStatistics
     }
 
     public Future<Double> calculateAverage(long from, long to, PositionPath positionPath) {
-        return getValues(from, to)
-                .map(values -> values.values().stream()
-                        .filter(e -> e.positionPath.toLowerCase().startsWith(positionPath.getPath().toLowerCase()))
-                        .mapToDouble(HumidityEntry::humidity)
-                        .average()
-                        .orElse(Double.NaN));
+        return aggregate(from, to, pathPrefix(positionPath))
+                .map(Rollup::average);
     }
 
     public Future<Float> getCurrentHumidity(PositionPath positionPath) {
-        return getValues(0, Instant.now().toEpochMilli())
-                .map(values -> values.entrySet().stream()
-                        .sorted((a, b) -> Long.compare(b.getKey(), a.getKey()))
-                        .map(Map.Entry::getValue)
-                        .filter(e -> e.positionPath().equalsIgnoreCase(positionPath.getPath()))
-                        .map(HumidityEntry::humidity)
-                        .findFirst()
-                        .orElse(null)
-                );
+        LatestValues.Latest current = getLatest(positionPath.getPath());
+        return Future.succeededFuture(current == null ? null : (float) current.value());
     }
 
     public Future<Double> getAverageLastHour(PositionPath positionPath) {
@@ -79,13 +73,18 @@ public class HumidityStatistics
     }
 
     public Future<Boolean> isEmpty(PositionPath positionPath) {
-        return getValuesLastHour()
-                .map(values -> values.values().stream()
-                        .noneMatch(v -> v.positionPath.toLowerCase()
-                                .startsWith(positionPath.getPath().toLowerCase())));
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.HOURS).toEpochMilli();
+        return getValues(from, to, pathPrefix(positionPath))
+                .map(TimeSeries::isEmpty);
     }
 
-    public record HumidityEntry(String positionPath, float humidity) {
+    public record HumidityEntry(String positionPath, float humidity) implements StatisticEntry {
+
+        @Override
+        public double value() {
+            return humidity;
+        }
 
         @Override
         public String toString() {
@@ -3,16 +3,53 @@ package tools.vlab.kberry.server.statistics;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.storage.OccupancySpans;
+import tools.vlab.kberry.server.statistics.storage.SeriesDictionary;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Map;
 
+/**
+ * Statistik über Anwesenheit pro Raum.
+ * Neben den Minutenwerten wird die Belegung je Melder als Zeitspannen geführt,
+ * daraus kommen Nutzungsanteil und letzte Anwesenheit.
+ */
 public class PresentStatistics
         extends Statistic<PresentStatistics.PresenceEntry> {
 
+    private static final String NAME = "presence";
+
+    private final OccupancySpans occupancy;
+
     public PresentStatistics(Vertx vertx) {
-        super(vertx, "stat/presence.csv");
+        this(vertx, new StatisticOptions());
+    }
+
+    public PresentStatistics(Vertx vertx, StatisticOptions options) {
+        super(vertx, "stat/" + NAME + ".csv", options);
+        this.occupancy = new OccupancySpans(vertx, directory, options.getWritePolicy(),
+                options.getCapture(NAME).maxGapMs());
+    }
+
+    @Override
+    public Future<Void> start() {
+        return super.start()
+                .compose(v -> occupancy.load())
+                .compose(replayFrom -> scan(replayFrom, Long.MAX_VALUE, path -> true,
+                        (ts, path, present) -> occupancy.replay(ts, path, present >= 0.5)))
+                .onSuccess(v -> occupancy.startCheckpoints());
+    }
+
+    @Override
+    public Future<Void> stop() {
+        return super.stop()
+                .compose(v -> occupancy.stop());
+    }
+
+    @Override
+    public Future<Void> append(long timestamp, PresenceEntry value) {
+        occupancy.add(timestamp, SeriesDictionary.normalize(value.positionPath()), value.present());
+        return super.append(timestamp, value);
     }
 
     @Override
@@ -25,13 +62,12 @@ public class PresentStatistics
         return PresenceEntry.fromString(line);
     }
 
+    /**
+     * Belegter Anteil (0..100) der beobachteten Zeit in [from, to] über alle Melder unterhalb von positionPath
+     */
     public Future<Double> calculateUsage(long from, long to, PositionPath positionPath) {
-        return getValues(from, to)
-                .map(values -> values.values().stream()
-                        .filter(e -> e.positionPath().toLowerCase().startsWith(positionPath.getPath().toLowerCase()))
-                        .mapToDouble(e -> e.present() ? 1.0 : 0.0)
-                        .average()
-                        .orElse(0.0) * 100);
+        double usage = occupancy.usage(from, to, Instant.now().toEpochMilli(), pathPrefix(positionPath));
+        return Future.succeededFuture(Double.isNaN(usage) ? 0.0 : usage * 100);
     }
 
     public Future<Double> getCurrentAverageUsage(PositionPath positionPath) {
@@ -63,13 +99,7 @@ public class PresentStatistics
     }
 
     private Future<Long> getLastPresenceTimestamp(PositionPath positionPath) {
-        return getValues(0, Instant.now().toEpochMilli())
-                .map(values -> values.entrySet().stream()
-                        .filter(e -> e.getValue().positionPath().toLowerCase().startsWith(positionPath.getPath().toLowerCase()))
-                        .filter(e -> e.getValue().present())
-                        .mapToLong(Map.Entry::getKey)
-                        .max()
-                        .orElse(-1L));
+        return Future.succeededFuture(occupancy.lastSeen(pathPrefix(positionPath)));
     }
 
     public Future<Long> getLastPresenceMinutes(PositionPath positionPath) {
@@ -87,7 +117,12 @@ public class PresentStatistics
                 .map(ts -> ts == -1 ? -1 : ChronoUnit.DAYS.between(Instant.ofEpochMilli(ts), Instant.now()));
     }
 
-    public record PresenceEntry(String positionPath, boolean present) {
+    public record PresenceEntry(String positionPath, boolean present) implements StatisticEntry {
+
+        @Override
+        public double value() {
+            return present ? 1.0 : 0.0;
+        }
 
         @Override
         public String toString() {
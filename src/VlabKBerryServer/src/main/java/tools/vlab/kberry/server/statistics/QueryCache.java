@@ -0,0 +1,148 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.PathFilter;
+import tools.vlab.kberry.server.statistics.storage.RollupStore;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Zwischenspeicher für Rohdaten-Abfragen einer Statistik, je Filter und Stunde.
+ * Abgelegt werden nur abgeschlossene Stunden, die laufende Stunde wird bei jeder Abfrage neu gelesen.
+ * Abgeschlossene Stunden werden nur ungültig, wenn Nachzügler für sie eintreffen oder Rohdaten entfernt werden.
+ * Bei vollem Speicherbudget fallen die am längsten nicht genutzten Stunden heraus.
+ */
+public final class QueryCache {
+
+    public record Stats(long hits, long misses, int entries, long bytes) {
+    }
+
+    private record Key(PathFilter filter, long bucket) {
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, TimeSeries> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<PathFilter> filters = new HashSet<>();
+    // Stunden mit noch nicht geschriebenen Werten
+    private final Map<Long, Integer> inFlight = new HashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    // zählt Änderungen an abgeschlossenen Stunden, ältere Abfragen legen nichts mehr ab
+    private long generation;
+
+    QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static long bucketOf(long timestamp) {
+        return RollupStore.Tier.HOUR.bucketOf(timestamp);
+    }
+
+    /**
+     * Beginn der laufenden Stunde, alles davor gilt als abgeschlossen
+     */
+    static long openBucket() {
+        return bucketOf(Instant.now().toEpochMilli());
+    }
+
+    boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Höchstens so viele Zeilen passen in das Budget
+     */
+    long maxRows() {
+        return maxBytes / TimeSeries.BYTES_PER_ROW;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized boolean cacheable(long bucket) {
+        return enabled() && bucket < openBucket() && !inFlight.containsKey(bucket);
+    }
+
+    /**
+     * @return Werte der Stunde oder null, wenn sie nicht vorliegt
+     */
+    synchronized TimeSeries get(PathFilter filter, long bucket) {
+        TimeSeries chunk = entries.get(new Key(filter, bucket));
+        if (chunk != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return chunk;
+    }
+
+    /**
+     * Legt die Werte einer Stunde ab, sofern sich seit Beginn der Abfrage (generation) nichts geändert hat
+     */
+    synchronized void put(PathFilter filter, long bucket, TimeSeries chunk, long generation) {
+        if (generation != this.generation || !cacheable(bucket)) return;
+        TimeSeries trimmed = chunk.trimmed();
+        long weight = trimmed.sizeInBytes();
+        if (weight > maxBytes) return;
+        TimeSeries previous = entries.put(new Key(filter, bucket), trimmed);
+        if (previous != null) {
+            bytes -= previous.sizeInBytes();
+        }
+        bytes += weight;
+        filters.add(filter);
+        Iterator<TimeSeries> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().sizeInBytes();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Vor dem Anhängen eines Werts. Nachzügler für eine abgeschlossene Stunde verwerfen deren Einträge.
+     */
+    synchronized void appending(long timestamp) {
+        long bucket = bucketOf(timestamp);
+        inFlight.merge(bucket, 1, Integer::sum);
+        if (bucket < openBucket()) {
+            generation++;
+            remove(bucket);
+        }
+    }
+
+    /**
+     * Nach dem Schreiben des Werts, erfolgreich oder nicht
+     */
+    synchronized void appended(long timestamp) {
+        inFlight.computeIfPresent(bucketOf(timestamp), (bucket, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Verwirft alles, z.B. nachdem Rohdaten entfernt wurden
+     */
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        filters.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, entries.size(), bytes);
+    }
+
+    private void remove(long bucket) {
+        for (PathFilter filter : filters) {
+            TimeSeries removed = entries.remove(new Key(filter, bucket));
+            if (removed != null) {
+                bytes -= removed.sizeInBytes();
+            }
+        }
+    }
+}
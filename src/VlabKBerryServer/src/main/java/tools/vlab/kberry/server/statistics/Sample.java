@@ -0,0 +1,9 @@
+package tools.vlab.kberry.server.statistics;
+
+/**
+ * Ein Wert einer Series, wie ihn {@link Statistic#streamValues} und {@link Statistic#onAppend} liefern
+ *
+ * @param positionPath normalisierter Pfad
+ */
+public record Sample(long timestamp, String positionPath, double value) {
+}
@@ -0,0 +1,158 @@
+package tools.vlab.kberry.server.statistics;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+import tools.vlab.kberry.server.statistics.storage.RollupStore;
+import tools.vlab.kberry.server.statistics.storage.SampleConsumer;
+import tools.vlab.kberry.server.statistics.storage.Segment;
+
+/**
+ * Liest [from, to] tageweise und gibt die Werte mit Gegendruck aus: der nächste Tag wird erst gelesen,
+ * wenn der Empfänger den vorigen abgenommen hat, im Speicher liegt also höchstens ein Tag.
+ * Je Durchlauf auf dem Kontext werden höchstens {@link #BATCH} Werte ausgegeben, damit der Event-Loop frei bleibt.
+ * Wie alle Streams von Vert.x nur auf dem Kontext zu benutzen, auf dem er angelegt wurde.
+ */
+class SampleStream implements ReadStream<Sample> {
+
+    private static final int BATCH = 1024;
+
+    /**
+     * Liest einen Tag (bzw. dessen Anteil an [from, to]) in den Empfänger
+     */
+    @FunctionalInterface
+    interface DayReader {
+        Future<Void> read(long from, long to, SampleConsumer consumer);
+    }
+
+    private final Context context;
+    private final DayReader reader;
+    private final long to;
+    // Beginn des nächsten zu lesenden Abschnitts
+    private long next;
+    private TimeSeries current = TimeSeries.empty();
+    private int position = 0;
+    private long demand = Long.MAX_VALUE;
+    private boolean reading = false;
+    private boolean scheduled = false;
+    private boolean ended = false;
+    private Handler<Sample> handler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<Void> endHandler;
+
+    SampleStream(Context context, long from, long to, DayReader reader) {
+        this.context = context;
+        this.reader = reader;
+        this.next = from;
+        this.to = to;
+    }
+
+    @Override
+    public SampleStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    /**
+     * Mit dem Handler beginnt das Lesen
+     */
+    @Override
+    public SampleStream handler(Handler<Sample> handler) {
+        this.handler = handler;
+        if (handler != null) {
+            schedule();
+        }
+        return this;
+    }
+
+    @Override
+    public SampleStream pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public SampleStream resume() {
+        return fetch(Long.MAX_VALUE);
+    }
+
+    @Override
+    public SampleStream fetch(long amount) {
+        if (amount > 0) {
+            demand = Long.MAX_VALUE - demand > amount ? demand + amount : Long.MAX_VALUE;
+            schedule();
+        }
+        return this;
+    }
+
+    @Override
+    public SampleStream endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    private void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        context.runOnContext(v -> {
+            scheduled = false;
+            drain();
+        });
+    }
+
+    private void drain() {
+        if (ended || handler == null) return;
+        int emitted = 0;
+        while (demand > 0 && position < current.size()) {
+            if (emitted == BATCH) {
+                schedule();
+                return;
+            }
+            Sample sample = new Sample(current.timestamp(position), current.positionPath(current.seriesId(position)),
+                    current.value(position));
+            position++;
+            emitted++;
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            handler.handle(sample);
+        }
+        if (position < current.size() || reading) return;
+        if (next > to) {
+            end();
+        } else {
+            readNext();
+        }
+    }
+
+    private void readNext() {
+        long from = next;
+        long until = Math.min(to, RollupStore.Tier.DAY.bucketOf(from) + Segment.DAY_MS - 1);
+        next = until + 1;
+        reading = true;
+        TimeSeries.Builder day = new TimeSeries.Builder();
+        reader.read(from, until, day).onComplete(result -> {
+            reading = false;
+            if (result.failed()) {
+                ended = true;
+                current = TimeSeries.empty();
+                if (exceptionHandler != null) {
+                    exceptionHandler.handle(result.cause());
+                }
+                return;
+            }
+            current = day.build();
+            position = 0;
+            drain();
+        });
+    }
+
+    private void end() {
+        ended = true;
+        current = TimeSeries.empty();
+        if (endHandler != null) {
+            endHandler.handle(null);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.Rollup;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ergebnis einer Sammelabfrage: die angefragten Kennzahlen je Pfad
+ */
+public final class SeriesAggregates {
+
+    private final Map<String, Rollup> rollups;
+    private final Set<Aggregation> aggregations;
+
+    SeriesAggregates(Map<String, Rollup> rollups, Set<Aggregation> aggregations) {
+        this.rollups = rollups;
+        this.aggregations = aggregations;
+    }
+
+    /**
+     * Pfade im Ergebnis, auch solche ohne Werte im Zeitraum
+     */
+    public Set<String> positionPaths() {
+        return Collections.unmodifiableSet(rollups.keySet());
+    }
+
+    /**
+     * @return Kennzahl des Pfads, NaN wenn der Pfad keine Werte hat oder die Kennzahl nicht angefragt war
+     */
+    public double get(String positionPath, Aggregation aggregation) {
+        if (!aggregations.contains(aggregation)) return Double.NaN;
+        return aggregation.of(rollups.get(positionPath));
+    }
+
+    /**
+     * Alle angefragten Kennzahlen des Pfads
+     */
+    public Map<Aggregation, Double> get(String positionPath) {
+        Map<Aggregation, Double> values = new EnumMap<>(Aggregation.class);
+        for (Aggregation aggregation : aggregations) {
+            values.put(aggregation, aggregation.of(rollups.get(positionPath)));
+        }
+        return values;
+    }
+}
@@ -1,35 +1,213 @@
 package tools.vlab.kberry.server.statistics;
 
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.streams.ReadStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.storage.*;
 
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
-public abstract class Statistic<T> {
+public abstract class Statistic<T extends StatisticEntry> {
+
+    private static final Logger Log = LoggerFactory.getLogger(Statistic.class);
 
     protected final Vertx vertx;
     protected final String filePath;
     protected final FileSystem fs;
+    protected final String directory;
+    private final String name;
+    private final RetentionPolicy retention;
+    private final ScanExecutor scans;
+    private final StatisticStore<T> store;
+    private final RollupStore rollups;
+    // null, wenn abgelaufene Rohdaten nicht zu Viertelstunden verdichtet werden
+    private final DownsampledStore downsampled;
+    // null, wenn für die Statistik keine Histogramme geführt werden
+    private final SketchStore sketches;
+    private final LatestValues latest = new LatestValues();
+    private final QueryCache cache;
+    private final List<Handler<Sample>> appendHandlers = new CopyOnWriteArrayList<>();
 
     protected Statistic(Vertx vertx, String filePath) {
+        this(vertx, filePath, new StatisticOptions());
+    }
+
+    /**
+     * @param filePath z.B. "stat/temperature.csv". Die Werte liegen in Tages-Segmenten
+     *                 unter "stat/temperature/", eine vorhandene Einzeldatei wird beim Start migriert.
+     *                 Mit {@link StatisticOptions#setDirectory(String)} liegt die Datei stattdessen dort.
+     */
+    protected Statistic(Vertx vertx, String filePath, StatisticOptions options) {
         this.vertx = vertx;
-        this.filePath = filePath;
+        this.filePath = options.getDirectory() == null
+                ? filePath
+                : Path.of(options.getDirectory(), Path.of(filePath).getFileName().toString()).toString();
         this.fs = vertx.fileSystem();
+        this.directory = segmentDirectory(this.filePath);
+        this.name = Path.of(directory).getFileName().toString();
+        this.retention = options.getRetention(name);
+        this.scans = new ScanExecutor(vertx, options.getScanThreads(), options.getScanTimeout().toMillis());
+        this.store = createStore(options);
+        this.rollups = new RollupStore(vertx, directory, options.getWritePolicy());
+        this.downsampled = retention.downsamples() ? new DownsampledStore(vertx, directory, scans) : null;
+        double resolution = options.getHistogramResolution(name);
+        this.sketches = resolution > 0
+                ? new SketchStore(vertx, directory, resolution, options.getCapture(name).maxGapMs(), options.getWritePolicy())
+                : null;
+        this.cache = new QueryCache(options.getQueryCacheBytes());
     }
 
+    /**
+     * Startet die Ablage und stellt Rollups und Histogramme her: geschriebene werden geladen,
+     * fehlende bzw. offene Buckets aus den Rohdaten neu berechnet.
+     * Danach werden die letzten Werte je Series aus dem Ende der Daten gelesen.
+     */
     public Future<Void> start() {
-        Path dir = Path.of(filePath).getParent(); // z.B. "stat"
+        return store.start()
+                .compose(v -> downsampled == null ? Future.succeededFuture() : downsampled.start())
+                .compose(v -> rollups.load())
+                .compose(replayFrom -> sketches == null
+                        ? Future.succeededFuture(replayFrom)
+                        : sketches.load().map(sketchesFrom -> Math.min(replayFrom, sketchesFrom)))
+                .compose(replayFrom -> store.scan(replayFrom, Long.MAX_VALUE, (ts, path, value) -> {
+                    rollups.replay(ts, path, value);
+                    if (sketches != null) {
+                        sketches.replay(ts, path, value);
+                    }
+                }))
+                .compose(v -> seedLatest());
+    }
+
+    /**
+     * Noch laufende Abfragen werden abgebrochen
+     */
+    public Future<Void> stop() {
+        scans.cancelAll();
+        return store.stop()
+                .compose(v -> rollups.stop())
+                .compose(v -> sketches == null ? Future.succeededFuture() : sketches.stop());
+    }
 
-        return fs.exists(dir.toString())
-                .compose(exists -> exists ? Future.succeededFuture() : fs.mkdirs(dir.toString()))
-                .compose(v -> fs.exists(filePath))
-                .compose(exists -> exists ? Future.succeededFuture() : fs.createFile(filePath));
+    /**
+     * Name der Statistik, z.B. "temperature", für statistikbezogene Einstellungen
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Entfernt Segmente, die laut Aufbewahrung abgelaufen sind. Die Rollups bleiben erhalten.
+     * Bei gestaffelter Aufbewahrung werden die Tage vorher zu Viertelstunden verdichtet
+     * und abgelaufene Viertelstunden entfernt.
+     *
+     * @return Anzahl entfernter Segmente
+     */
+    public Future<Integer> applyRetention() {
+        if (retention.keepsAll()) {
+            return Future.succeededFuture(0);
+        }
+        long now = Instant.now().toEpochMilli();
+        long cutoff = retention.cutoff(now);
+        return downsample(cutoff)
+                .compose(v -> store.expire(cutoff))
+                .compose(removed -> downsampled == null
+                        ? Future.succeededFuture(removed)
+                        : downsampled.expire(retention.downsampledCutoff(now)).map(removed))
+                .onComplete(removed -> cache.invalidateAll());
+    }
+
+    /**
+     * Verdichtet alle noch nicht verdichteten Tage, die vollständig vor cutoff enden
+     */
+    private Future<Void> downsample(long cutoff) {
+        if (downsampled == null) {
+            return Future.succeededFuture();
+        }
+        long first = Math.max(store.firstTimestamp(), downsampled.coveredUntil());
+        if (first == Long.MAX_VALUE) {
+            return Future.succeededFuture();
+        }
+        Future<Integer> result = Future.succeededFuture(0);
+        for (long day = RollupStore.Tier.DAY.bucketOf(first); day + Segment.DAY_MS <= cutoff; day += Segment.DAY_MS) {
+            long dayStart = day;
+            result = result.compose(days -> downsampled.compact(dayStart,
+                            consumer -> store.scan(dayStart, dayStart + Segment.DAY_MS - 1, consumer))
+                    .map(written -> written ? days + 1 : days));
+        }
+        return result
+                .onSuccess(days -> {
+                    if (days > 0) Log.info("Downsampled {} days of {}", days, name);
+                })
+                .mapEmpty();
+    }
+
+    /**
+     * Beginn der Rohdaten, davor wird aus Viertelstunden bzw. Stunden gelesen
+     */
+    private long rawFrom() {
+        if (retention.keepsAll()) {
+            return Long.MIN_VALUE;
+        }
+        long first = store.firstTimestamp();
+        return downsampled == null ? first : Math.max(first, downsampled.coveredUntil());
+    }
+
+    /**
+     * Treffer und Fehlgriffe des Abfrage-Caches, gezählt je Stunde
+     */
+    public QueryCache.Stats getCacheStats() {
+        return cache.stats();
+    }
+
+    private Future<Void> seedLatest() {
+        Future<Void> result = Future.succeededFuture();
+        for (long day : rollups.lastDays()) {
+            result = result.compose(v -> store.scan(day, day + Segment.DAY_MS - 1, latest::update));
+        }
+        return result;
+    }
+
+    /**
+     * Im Journal-Betrieb schreibt die Ablage nur bei der Übertragung, dann immer mit fsync
+     */
+    private StatisticStore<T> createStore(StatisticOptions options) {
+        WritePolicy writePolicy = options.isJournaled()
+                ? new WritePolicy(options.getWritePolicy().commitDelayMs(), true)
+                : options.getWritePolicy();
+        StatisticStore<T> segments = switch (options.getFormat()) {
+            case CSV -> new CsvSegmentStore<>(vertx, directory, filePath, new Codec(), writePolicy, scans);
+            case BINARY -> new BinarySegmentStore<>(vertx, directory, filePath, new Codec(), writePolicy, scans);
+            case GORILLA -> new GorillaSegmentStore<>(vertx, directory, filePath, new Codec(), writePolicy, scans);
+        };
+        if (!options.isJournaled()) {
+            return segments;
+        }
+        return new JournaledStore<>(vertx, directory, segments, new Codec(), options.getWritePolicy(),
+                options.getJournalCompactInterval().toMillis());
+    }
+
+    private static String segmentDirectory(String filePath) {
+        Path path = Path.of(filePath);
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return path.resolveSibling(dot > 0 ? name.substring(0, dot) : name + ".d").toString();
     }
 
     protected abstract String serializeValue(T value);
@@ -41,77 +219,477 @@ public abstract class Statistic<T> {
     }
 
     public Future<Void> append(long timestamp, T value) {
-        String line = timestamp + ";" + serializeValue(value) + "\n";
-        return fs.open(filePath,
-                        new io.vertx.core.file.OpenOptions().setAppend(true).setCreate(true))
-                .compose(file -> file.write(Buffer.buffer(line))
-                        .onComplete(v -> file.close()));
+        String path = SeriesDictionary.normalize(value.positionPath());
+        rollups.add(timestamp, path, value.value());
+        if (sketches != null) {
+            sketches.add(timestamp, path, value.value());
+        }
+        latest.update(timestamp, path, value.value());
+        if (!appendHandlers.isEmpty()) {
+            Sample sample = new Sample(timestamp, path, value.value());
+            for (Handler<Sample> handler : appendHandlers) {
+                // ein fehlerhafter Empfänger darf das Speichern nicht verhindern
+                try {
+                    handler.handle(sample);
+                } catch (RuntimeException e) {
+                    Log.error("Append handler of {} failed", name, e);
+                }
+            }
+        }
+        cache.appending(timestamp);
+        return store.append(timestamp, value)
+                .onComplete(result -> cache.appended(timestamp));
     }
 
-    public Future<Map<Long, T>> getValuesLastMonth() {
+    /**
+     * Empfänger für jeden neuen Wert, z.B. die Alarme. Läuft im Aufrufer von append und darf nicht blockieren.
+     */
+    public void onAppend(Handler<Sample> handler) {
+        appendHandlers.add(handler);
+    }
+
+    /**
+     * Filter auf genau diesen Pfad, unabhängig von der Schreibweise
+     */
+    protected static PathFilter samePath(PositionPath positionPath) {
+        return PathFilter.exact(positionPath.getPath());
+    }
+
+    /**
+     * Filter auf alle Pfade unterhalb von positionPath, unabhängig von der Schreibweise
+     */
+    protected static PathFilter pathPrefix(PositionPath positionPath) {
+        return PathFilter.prefix(positionPath.getPath());
+    }
+
+    /**
+     * Letzter Wert des Pfads aus dem Speicher, ohne Dateizugriff
+     *
+     * @return null, wenn für den Pfad kein Wert existiert
+     */
+    protected LatestValues.Latest getLatest(String positionPath) {
+        return latest.get(positionPath);
+    }
+
+    /**
+     * Beginn des letzten Tages vor before, an dem der Pfad Werte hat, -1 ohne oder wenn die Rohdaten
+     * dieses Tages bereits entfernt sind
+     *
+     * @param positionPath normalisierter Pfad
+     */
+    protected long lastDayBefore(String positionPath, long before) {
+        long day = rollups.lastBucketBefore(RollupStore.Tier.DAY, positionPath, before);
+        return day >= 0 && day + Segment.DAY_MS > store.firstTimestamp() ? day : -1;
+    }
+
+    public Future<TimeSeries> getValuesLastMonth() {
         long to = Instant.now().toEpochMilli();
         long from = Instant.now().minus(30, ChronoUnit.DAYS).toEpochMilli();
         return getValues(from, to);
     }
 
-    public Future<Map<Long, T>> getValuesLastYear() {
+    public Future<TimeSeries> getValuesLastYear() {
         long to = Instant.now().toEpochMilli();
         long from = Instant.now().minus(365, ChronoUnit.DAYS).toEpochMilli();
         return getValues(from, to);
     }
 
-    public Future<Map<Long, T>> getValuesLastHour() {
+    public Future<TimeSeries> getValuesLastHour() {
         long to = Instant.now().toEpochMilli();
         long from = Instant.now().minus(1, ChronoUnit.HOURS).toEpochMilli();
         return getValues(from, to);
     }
 
-    public Future<Map<Long, T>> getValuesLastDay() {
+    public Future<TimeSeries> getValuesLastDay() {
         long to = Instant.now().toEpochMilli();
         long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
         return getValues(from, to);
     }
 
-    public Future<Map<Long, T>> getValues(long from, long to) {
-        return fs.readFile(filePath)
-                .map(buffer -> {
-                    Map<Long, T> result = new LinkedHashMap<>();
+    public Future<TimeSeries> getValues(long from, long to) {
+        return getValues(from, to, PathFilter.ALL);
+    }
+
+    /**
+     * Wie {@link #getValues(long, long)}, liest aber nur Series, deren normalisierter Pfad zum Filter passt
+     */
+    public Future<TimeSeries> getValues(long from, long to, Predicate<String> positionPaths) {
+        TimeSeries.Builder result = new TimeSeries.Builder();
+        return read(from, to, positionPaths, result)
+                .map(v -> result.build());
+    }
+
+    /**
+     * Wie {@link #getValues(long, long, Predicate)}, aber mit höchstens maxPoints Punkten je Series,
+     * z.B. für Diagramme. Die Rohwerte werden im Durchlauf reduziert, nicht erst gesammelt.
+     */
+    public Future<TimeSeries> getValuesDownsampled(long from, long to, Predicate<String> positionPaths,
+                                                   int maxPoints, Downsampling method) {
+        Downsampler downsampler;
+        try {
+            downsampler = new Downsampler(from, Math.min(to, Instant.now().toEpochMilli()), maxPoints, method);
+        } catch (IllegalArgumentException e) {
+            return Future.failedFuture(e);
+        }
+        return read(from, to, positionPaths, downsampler)
+                .map(v -> downsampler.finish());
+    }
+
+    public Future<TimeSeries> getValuesDownsampled(long from, long to, int maxPoints, Downsampling method) {
+        return getValuesDownsampled(from, to, PathFilter.ALL, maxPoints, method);
+    }
+
+    /**
+     * Liefert die Werte in [from, to] als Stream mit Gegendruck, z.B. für den Export eines Jahres
+     * in eine Datei oder per MQTT. Gelesen wird tageweise und erst, wenn der Empfänger den vorigen Tag
+     * abgenommen hat, der Speicherbedarf bleibt so bei einem Tag. Der Abfrage-Cache wird umgangen.
+     * Der Stream gehört zum aufrufenden Kontext und endet beim Zeitpunkt des Aufrufs.
+     * Wie bei {@link #getValues} kommen Zeiträume ohne Rohdaten aus Viertelstunden bzw. Stunden.
+     */
+    public ReadStream<Sample> streamValues(long from, long to, Predicate<String> positionPaths) {
+        long start = Math.max(from, rollups.firstTimestamp());
+        long end = Math.min(to, Instant.now().toEpochMilli());
+        return new SampleStream(vertx.getOrCreateContext(), start, end,
+                (dayFrom, dayTo, consumer) -> readTiered(dayFrom, dayTo, positionPaths, consumer,
+                        (rawFrom, rawTo, raw) -> store.scan(rawFrom, rawTo, positionPaths, raw)));
+    }
+
+    public ReadStream<Sample> streamValues(long from, long to) {
+        return streamValues(from, to, PathFilter.ALL);
+    }
+
+    /**
+     * Liest die Rohdaten in [from, to] ohne Zwischenergebnis
+     */
+    protected Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        return store.scan(from, to, positionPaths, consumer);
+    }
+
+    /**
+     * Liest [from, to] aus der feinsten vorhandenen Stufe: ab {@link #rawFrom()} die Rohdaten,
+     * davor je Viertelstunde bzw. Stunde deren Mittelwert zum Beginn des Buckets.
+     */
+    private Future<Void> read(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        return readTiered(from, to, positionPaths, consumer,
+                (rawFrom, rawTo, raw) -> readRaw(rawFrom, rawTo, positionPaths, raw));
+    }
+
+    private Future<Void> readTiered(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer,
+                                    SampleStream.DayReader raw) {
+        long rawFrom = rawFrom();
+        if (from >= rawFrom) {
+            return raw.read(from, to, consumer);
+        }
+        RollupConsumer averages = (bucket, path, rollup) -> consumer.accept(bucket, path, rollup.average());
+        Future<Void> older = coverDownsampled(from, Math.min(to, rawFrom - 1), positionPaths, averages);
+        return to < rawFrom ? older : older.compose(v -> raw.read(rawFrom, to, consumer));
+    }
 
-                    buffer.toString()
-                            .lines()
-                            .map(line -> line.split(";", 2))
-                            .filter(parts -> parts.length == 2)
-                            .forEach(parts -> {
-                                long ts = Long.parseLong(parts[0]);
-                                if (ts >= from && ts <= to) {
-                                    result.put(ts, deserializeValue(parts[1]));
-                                }
-                            });
+    /**
+     * Gibt die Buckets in [from, to] aus: Viertelstunden, soweit verdichtet, sonst Stunden
+     */
+    private Future<Void> coverDownsampled(long from, long to, Predicate<String> positionPaths,
+                                          RollupConsumer consumer) {
+        Set<String> series = seriesOf(positionPaths);
+        if (downsampled == null || downsampled.firstTimestamp() == Long.MAX_VALUE) {
+            return coverHours(from, to, series, consumer);
+        }
+        long quarterFrom = downsampled.firstTimestamp();
+        long quarterTo = downsampled.coveredUntil() - 1;
+        Future<Void> result = Future.succeededFuture();
+        if (from < quarterFrom) {
+            result = coverHours(from, Math.min(to, quarterFrom - 1), series, consumer);
+        }
+        if (from <= quarterTo && to >= quarterFrom) {
+            result = result.compose(v -> downsampled.scan(Math.max(from, quarterFrom), Math.min(to, quarterTo),
+                    series, consumer));
+        }
+        if (to > quarterTo) {
+            result = result.compose(v -> coverHours(Math.max(from, quarterTo + 1), to, series, consumer));
+        }
+        return result;
+    }
+
+    private Future<Void> coverHours(long from, long to, Set<String> series, RollupConsumer consumer) {
+        return scans.execute(() -> {
+            rollups.forEachBucket(RollupStore.Tier.HOUR, from, to, series, consumer);
+            return null;
+        });
+    }
+
+    /**
+     * Liest [from, to] über den Abfrage-Cache, sofern der Filter ein {@link PathFilter} ist.
+     * Abgeschlossene Stunden kommen aus dem Cache, fehlende werden am Stück gelesen und abgelegt,
+     * die laufende Stunde wird immer aus den Rohdaten gelesen.
+     */
+    private Future<Void> readRaw(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        long start = Math.max(from, rollups.firstTimestamp());
+        if (!(positionPaths instanceof PathFilter filter) || !cache.enabled() || start > to) {
+            return store.scan(from, to, positionPaths, consumer);
+        }
+        long generation = cache.generation();
+        long open = QueryCache.openBucket();
+        long last = QueryCache.bucketOf(Math.min(to, open - 1));
+        Future<Void> result = Future.succeededFuture();
+        List<TimeSeries> hits = new ArrayList<>();
+        long missFrom = -1;
+        for (long bucket = QueryCache.bucketOf(start); bucket <= last; bucket += RollupStore.HOUR_MS) {
+            TimeSeries chunk = cache.cacheable(bucket) ? cache.get(filter, bucket) : null;
+            if (chunk == null) {
+                if (!hits.isEmpty()) {
+                    result = emit(result, hits, from, to, consumer);
+                    hits = new ArrayList<>();
+                }
+                if (missFrom < 0) {
+                    missFrom = bucket;
+                }
+            } else {
+                if (missFrom >= 0) {
+                    result = readMissing(result, missFrom, bucket, from, to, filter, generation, consumer);
+                    missFrom = -1;
+                }
+                hits.add(chunk);
+            }
+        }
+        if (!hits.isEmpty()) {
+            result = emit(result, hits, from, to, consumer);
+        }
+        if (missFrom >= 0) {
+            result = readMissing(result, missFrom, last + RollupStore.HOUR_MS, from, to, filter, generation, consumer);
+        }
+        if (to >= open) {
+            result = result.compose(v -> store.scan(Math.max(from, open), to, filter, consumer));
+        }
+        return result;
+    }
+
+    /**
+     * Liest die Stunden [missFrom, missTo) und legt die abgeschlossenen im Cache ab.
+     * Übersteigt die Menge das Budget des Caches, wird nichts abgelegt.
+     */
+    private Future<Void> readMissing(Future<Void> previous, long missFrom, long missTo, long from, long to,
+                                     PathFilter filter, long generation, SampleConsumer consumer) {
+        Map<Long, TimeSeries.Builder> chunks = new HashMap<>();
+        long maxRows = cache.maxRows();
+        long[] rows = new long[1];
+        return previous.compose(ignore -> store.scan(missFrom, missTo - 1, filter, (ts, path, value) -> {
+                    if (rows[0] < maxRows) {
+                        chunks.computeIfAbsent(QueryCache.bucketOf(ts), b -> new TimeSeries.Builder(16))
+                                .add(ts, path, value);
+                        if (++rows[0] == maxRows) {
+                            chunks.clear();
+                        }
+                    }
+                    if (ts >= from && ts <= to) {
+                        consumer.accept(ts, path, value);
+                    }
+                })
+                .onSuccess(v -> {
+                    if (rows[0] >= maxRows) return;
+                    for (long bucket = missFrom; bucket < missTo; bucket += RollupStore.HOUR_MS) {
+                        TimeSeries.Builder chunk = chunks.get(bucket);
+                        cache.put(filter, bucket, chunk == null ? TimeSeries.empty() : chunk.build(), generation);
+                    }
+                }));
+    }
+
+    /**
+     * Gibt Treffer aus dem Cache auf dem Pool der Scans aus, damit auch deren Verdichtung nicht den Event-Loop belegt
+     */
+    private Future<Void> emit(Future<Void> previous, List<TimeSeries> chunks, long from, long to,
+                              SampleConsumer consumer) {
+        return previous.compose(ignore -> scans.execute(() -> {
+            for (TimeSeries chunk : chunks) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    long ts = chunk.timestamp(i);
+                    if (ts >= from && ts <= to) {
+                        consumer.accept(ts, chunk.positionPath(chunk.seriesId(i)), chunk.value(i));
+                    }
+                }
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Verdichtet alle Werte in [from, to], deren normalisierter Pfad zum Filter passt.
+     * Ganze Stunden und Tage kommen aus den Rollups, nur die Ränder werden aus den Rohdaten gelesen.
+     */
+    protected Future<Rollup> aggregate(long from, long to, Predicate<String> positionPaths) {
+        RollupStore.Coverage coverage = rollups.cover(from, to, positionPaths);
+        Rollup result = coverage.rollup();
+        Future<Void> scans = Future.succeededFuture();
+        for (RollupStore.Gap gap : coverage.gaps()) {
+            scans = scans.compose(v -> coverGap(gap, positionPaths, positionPaths,
+                    (ts, path, value) -> result.add(value),
+                    (bucket, path, rollup) -> result.merge(rollup)));
+        }
+        return scans.map(result);
+    }
+
+    /**
+     * Füllt einen Rand der Rollups: ab {@link #rawFrom()} aus den Rohdaten, davor aus den Viertelstunden,
+     * die in der Lücke beginnen. Ohne Viertelstunden bleibt der Rand vor den Rohdaten leer.
+     */
+    private Future<Void> coverGap(RollupStore.Gap gap, Predicate<String> positionPaths, Predicate<String> scanFilter,
+                                  SampleConsumer raw, RollupConsumer older) {
+        long rawFrom = rawFrom();
+        Future<Void> result = Future.succeededFuture();
+        if (gap.from() < rawFrom && downsampled != null) {
+            result = downsampled.scan(gap.from(), Math.min(gap.to(), rawFrom - 1), seriesOf(positionPaths), older);
+        }
+        if (gap.to() >= rawFrom) {
+            result = result.compose(v -> readRaw(Math.max(gap.from(), rawFrom), gap.to(), scanFilter, raw));
+        }
+        return result;
+    }
+
+    /**
+     * Sammelabfrage, z.B. für eine Übersicht aller Räume: verdichtet die Werte jedes Pfads
+     * in einem Durchgang über die Rollups, statt eine Abfrage je Pfad zu stellen.
+     * Welche Series zu einem Pfad gehören, legt {@link #filterOf(PositionPath)} fest.
+     *
+     * @return Kennzahlen je {@link PositionPath#getPath()}
+     */
+    public Future<SeriesAggregates> aggregate(long from, long to, Collection<? extends PositionPath> positionPaths,
+                                              Set<Aggregation> aggregations) {
+        Map<String, Set<String>> groups = new LinkedHashMap<>();
+        Set<String> any = new HashSet<>();
+        for (PositionPath positionPath : positionPaths) {
+            Set<String> series = seriesOf(filterOf(positionPath));
+            groups.put(positionPath.getPath(), series);
+            any.addAll(series);
+        }
+        return aggregateBySeries(from, to, any::contains).map(bySeries -> {
+            Map<String, Rollup> result = new LinkedHashMap<>();
+            groups.forEach((key, series) -> {
+                Rollup group = new Rollup();
+                for (String path : series) {
+                    Rollup rollup = bySeries.get(path);
+                    if (rollup != null) group.merge(rollup);
+                }
+                result.put(key, group);
+            });
+            return new SeriesAggregates(result, aggregations);
+        });
+    }
 
-                    return result;
+    /**
+     * Sammelabfrage über alle Series unterhalb von positionPath, z.B. das ganze Haus
+     *
+     * @return Kennzahlen je normalisiertem Pfad der Series
+     */
+    public Future<SeriesAggregates> aggregateBelow(long from, long to, PositionPath positionPath,
+                                                   Set<Aggregation> aggregations) {
+        return aggregateBySeries(from, to, pathPrefix(positionPath))
+                .map(bySeries -> new SeriesAggregates(bySeries, aggregations));
+    }
+
+    /**
+     * Bekannte Series, deren normalisierter Pfad zum Filter passt, über den Pfad-Index statt über Pfadvergleiche
+     */
+    protected Set<String> seriesOf(Predicate<String> positionPaths) {
+        return rollups.series().resolve(positionPaths);
+    }
+
+    /**
+     * Series, die zu einem angefragten Pfad gehören. Standard sind alle Series unterhalb des Pfads.
+     */
+    protected PathFilter filterOf(PositionPath positionPath) {
+        return pathPrefix(positionPath);
+    }
+
+    /**
+     * Zeitgewichtete Verteilung der Werte in [from, to] für Perzentile und Dauer über Schwellwerten.
+     * Ganze Stunden und Tage kommen aus den Histogrammen, nur die Ränder aus den Rohdaten.
+     * Welche Series zu positionPath gehören, legt {@link #filterOf(PositionPath)} fest,
+     * bei mehreren Series addieren sich deren Zeiten.
+     */
+    public Future<Histogram> getDistribution(long from, long to, PositionPath positionPath) {
+        return distribution(from, to, filterOf(positionPath));
+    }
+
+    /**
+     * Wie {@link #getDistribution}, je Kalendertag (UTC) in [from, to]
+     *
+     * @return Tagesbeginn -> Verteilung, aufsteigend
+     */
+    public Future<Map<Long, Histogram>> getDistributionByDay(long from, long to, PositionPath positionPath) {
+        PathFilter filter = filterOf(positionPath);
+        Map<Long, Histogram> result = new LinkedHashMap<>();
+        long end = Math.min(to, Instant.now().toEpochMilli());
+        Future<Void> days = Future.succeededFuture();
+        for (long day = RollupStore.Tier.DAY.bucketOf(from); day <= end; day += Segment.DAY_MS) {
+            long dayStart = day;
+            days = days.compose(v -> distribution(Math.max(from, dayStart), Math.min(end, dayStart + Segment.DAY_MS - 1), filter)
+                    .map(histogram -> {
+                        result.put(dayStart, histogram);
+                        return null;
+                    }));
+        }
+        return days.map(result);
+    }
+
+    protected Future<Histogram> distribution(long from, long to, Predicate<String> positionPaths) {
+        if (sketches == null) {
+            return Future.failedFuture(new IllegalStateException("No histogram resolution configured for " + name));
+        }
+        long end = Math.min(to, Instant.now().toEpochMilli());
+        if (end < from) {
+            return Future.succeededFuture(new Histogram(sketches.resolution()));
+        }
+        SketchStore.Coverage coverage = sketches.cover(from, end, rollups.series().resolve(positionPaths));
+        Histogram result = coverage.histogram();
+        Future<Void> scans = Future.succeededFuture();
+        for (RollupStore.Gap gap : coverage.gaps()) {
+            scans = scans.compose(v -> fillGap(gap, positionPaths, result));
+        }
+        return scans.map(result);
+    }
+
+    /**
+     * Liest die Lücke samt Vorlauf aus den Rohdaten, damit auch der Wert vor ihrem Beginn zählt
+     */
+    private Future<Void> fillGap(RollupStore.Gap gap, Predicate<String> positionPaths, Histogram target) {
+        TimeWeighting weighting = new TimeWeighting(sketches.maxGapMs());
+        TimeWeighting.IntervalConsumer clip = (path, value, start, stop) ->
+                target.add(value, Math.min(stop, gap.to() + 1) - Math.max(start, gap.from()));
+        return read(Math.max(0, gap.from() - sketches.maxGapMs()), gap.to(), positionPaths,
+                (ts, path, value) -> weighting.accept(ts, path, value, clip))
+                .map(v -> {
+                    weighting.finish(gap.to() + 1, clip);
+                    return null;
                 });
     }
 
+    /**
+     * Wie {@link #aggregate(long, long, Predicate)}, aber je normalisiertem Pfad.
+     * Die Ränder werden in einem gemeinsamen Durchgang für alle Series gelesen.
+     */
+    protected Future<Map<String, Rollup>> aggregateBySeries(long from, long to, Predicate<String> positionPaths) {
+        RollupStore.SeriesCoverage coverage = rollups.coverBySeries(from, to, positionPaths);
+        Map<String, Rollup> result = coverage.rollups();
+        // nur PathFilter werden zwischengespeichert, andere Filter werden beim Lesen angewendet
+        Predicate<String> scanFilter = positionPaths instanceof PathFilter ? positionPaths : PathFilter.ALL;
+        Future<Void> scans = Future.succeededFuture();
+        for (RollupStore.Gap gap : coverage.gaps()) {
+            scans = scans.compose(v -> coverGap(gap, positionPaths, scanFilter,
+                    (ts, path, value) -> {
+                        if (positionPaths.test(path)) {
+                            result.computeIfAbsent(path, p -> new Rollup()).add(value);
+                        }
+                    },
+                    (bucket, path, rollup) -> result.computeIfAbsent(path, p -> new Rollup()).merge(rollup)));
+        }
+        return scans.map(result);
+    }
 
+    /**
+     * Entfernt Rohdaten älter als from, die Rollups bleiben erhalten
+     */
     public Future<Void> clean(long from) {
-        return fs.readFile(filePath)
-                .compose(buffer -> {
-                    StringBuilder sb = new StringBuilder();
-
-                    buffer.toString()
-                            .lines()
-                            .map(line -> line.split(";", 2))
-                            .filter(parts -> parts.length == 2)
-                            .forEach(parts -> {
-                                long ts = Long.parseLong(parts[0]);
-                                if (ts >= from) {
-                                    sb.append(parts[0]).append(";")
-                                            .append(parts[1]).append("\n");
-                                }
-                            });
-
-                    return fs.writeFile(filePath, Buffer.buffer(sb.toString()));
-                });
+        return store.clean(from)
+                .onComplete(result -> cache.invalidateAll());
     }
 
     public Future<Void> cleanOlderThanDays(int days) {
@@ -120,4 +698,27 @@ public abstract class Statistic<T> {
                 .toEpochMilli();
         return clean(cutoff);
     }
+
+    private class Codec implements EntryCodec<T> {
+
+        @Override
+        public String serialize(T value) {
+            return serializeValue(value);
+        }
+
+        @Override
+        public T deserialize(String raw) {
+            return deserializeValue(raw);
+        }
+
+        @Override
+        public String positionPath(T value) {
+            return value.positionPath();
+        }
+
+        @Override
+        public double value(T value) {
+            return value.value();
+        }
+    }
 }
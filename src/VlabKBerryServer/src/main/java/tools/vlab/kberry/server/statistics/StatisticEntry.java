@@ -0,0 +1,11 @@
+package tools.vlab.kberry.server.statistics;
+
+/**
+ * Gemeinsame Sicht auf einen Statistik-Eintrag: Pfad des Sensors und Messwert
+ */
+public interface StatisticEntry {
+
+    String positionPath();
+
+    double value();
+}
@@ -0,0 +1,218 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.RetentionPolicy;
+import tools.vlab.kberry.server.statistics.storage.StorageFormat;
+import tools.vlab.kberry.server.statistics.storage.WritePolicy;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Einstellungen für die Ablage der Statistiken
+ */
+public class StatisticOptions {
+
+    private String directory = null;
+    private StorageFormat format = StorageFormat.CSV;
+    private WritePolicy writePolicy = WritePolicy.GROUP_COMMIT;
+    private RetentionPolicy retention = RetentionPolicy.KEEP_ALL;
+    private final Map<String, RetentionPolicy> retentionByStatistic = new HashMap<>();
+    private Duration retentionInterval = Duration.ofHours(1);
+    private double meterRollover = 0;
+    private long queryCacheBytes = 4 * 1024 * 1024;
+    private final Map<String, Capture> captureByStatistic = new HashMap<>();
+    private Duration captureCheckInterval = Duration.ofSeconds(5);
+    private boolean journaled = false;
+    private Duration journalCompactInterval = Duration.ofMinutes(5);
+    private int scanThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private Duration scanTimeout = Duration.ofMinutes(5);
+    // Klassenbreite der Histogramme je Statistik, Zähler und Präsenz haben keine
+    private final Map<String, Double> histogramResolutionByStatistic = new HashMap<>(Map.of(
+            "temperature", 0.1,
+            "humidity", 0.5,
+            "voc", 10.0));
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Verzeichnis aller Statistiken, ohne Einstellung (null) gelten die Pfade der Statistiken, z.B. "stat/voc.csv"
+     */
+    public StatisticOptions setDirectory(String directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    public StorageFormat getFormat() {
+        return format;
+    }
+
+    public StatisticOptions setFormat(StorageFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    public StatisticOptions setWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+        return this;
+    }
+
+    /**
+     * Aufbewahrung einer Statistik, sonst die allgemeine
+     *
+     * @param statistic Name der Statistik, z.B. "temperature" (siehe {@link Statistic#getName()})
+     */
+    public RetentionPolicy getRetention(String statistic) {
+        return retentionByStatistic.getOrDefault(statistic, retention);
+    }
+
+    /**
+     * Aufbewahrung für alle Statistiken ohne eigene Einstellung
+     */
+    public StatisticOptions setRetention(RetentionPolicy retention) {
+        this.retention = retention;
+        return this;
+    }
+
+    public StatisticOptions setRetention(String statistic, RetentionPolicy retention) {
+        this.retentionByStatistic.put(statistic, retention);
+        return this;
+    }
+
+    public double getMeterRollover() {
+        return meterRollover;
+    }
+
+    /**
+     * Zählerstand (kWh), bei dem die Stromzähler überlaufen, 0 = unbekannt.
+     * Fallende Zählerstände werden dann als Zurücksetzen gewertet.
+     */
+    public StatisticOptions setMeterRollover(double meterRollover) {
+        this.meterRollover = meterRollover;
+        return this;
+    }
+
+    public Duration getRetentionInterval() {
+        return retentionInterval;
+    }
+
+    /**
+     * Abstand, in dem abgelaufene Segmente im Hintergrund entfernt werden
+     */
+    public StatisticOptions setRetentionInterval(Duration retentionInterval) {
+        this.retentionInterval = retentionInterval;
+        return this;
+    }
+
+    public long getQueryCacheBytes() {
+        return queryCacheBytes;
+    }
+
+    /**
+     * Speicherbudget des Abfrage-Caches je Statistik, 0 schaltet ihn ab
+     */
+    public StatisticOptions setQueryCacheBytes(long queryCacheBytes) {
+        this.queryCacheBytes = queryCacheBytes;
+        return this;
+    }
+
+    /**
+     * Erfassung einer Statistik, ohne Einstellung {@link Capture#PERIODIC}
+     */
+    public Capture getCapture(String statistic) {
+        return captureByStatistic.getOrDefault(statistic, Capture.PERIODIC);
+    }
+
+    /**
+     * @param statistic Name der Statistik, z.B. "temperature" (siehe {@link Statistic#getName()})
+     */
+    public StatisticOptions setCapture(String statistic, Capture capture) {
+        this.captureByStatistic.put(statistic, capture);
+        return this;
+    }
+
+    public Duration getCaptureCheckInterval() {
+        return captureCheckInterval;
+    }
+
+    /**
+     * Abstand, in dem Sensoren bei {@link Capture.Mode#ON_CHANGE} auf Änderungen geprüft werden.
+     * Präsenzmelder melden Änderungen zusätzlich sofort.
+     */
+    public StatisticOptions setCaptureCheckInterval(Duration captureCheckInterval) {
+        this.captureCheckInterval = captureCheckInterval;
+        return this;
+    }
+
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    /**
+     * Neue Werte zuerst in ein synchronisiertes Journal schreiben und gesammelt in die Ablage übertragen.
+     * Kostet ein fsync je Schreibvorgang, übersteht dafür Stromausfälle ohne Datenverlust.
+     */
+    public StatisticOptions setJournaled(boolean journaled) {
+        this.journaled = journaled;
+        return this;
+    }
+
+    public Duration getJournalCompactInterval() {
+        return journalCompactInterval;
+    }
+
+    /**
+     * Abstand, in dem das Journal in die Ablage übertragen wird
+     */
+    public StatisticOptions setJournalCompactInterval(Duration journalCompactInterval) {
+        this.journalCompactInterval = journalCompactInterval;
+        return this;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    /**
+     * Threads des gemeinsamen Pools, auf dem Abfragen Rohdaten lesen und verdichten, standardmäßig einer je Kern (höchstens 4)
+     */
+    public StatisticOptions setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+        return this;
+    }
+
+    public Duration getScanTimeout() {
+        return scanTimeout;
+    }
+
+    /**
+     * Höchstdauer einer Abfrage auf den Rohdaten, danach wird sie abgebrochen. {@link Duration#ZERO} = unbegrenzt
+     */
+    public StatisticOptions setScanTimeout(Duration scanTimeout) {
+        this.scanTimeout = scanTimeout;
+        return this;
+    }
+
+    /**
+     * Klassenbreite der Perzentil-Histogramme einer Statistik, 0 = keine Histogramme
+     */
+    public double getHistogramResolution(String statistic) {
+        return histogramResolutionByStatistic.getOrDefault(statistic, 0.0);
+    }
+
+    /**
+     * Eine geänderte Auflösung verwirft die geschriebenen Histogramme, sie werden aus den Rohdaten neu berechnet
+     *
+     * @param resolution z.B. 0.1 für Temperaturen auf 0.1 °C genau, 0 schaltet die Histogramme ab
+     */
+    public StatisticOptions setHistogramResolution(String statistic, double resolution) {
+        this.histogramResolutionByStatistic.put(statistic, resolution);
+        return this;
+    }
+}
@@ -1,22 +1,134 @@
 package tools.vlab.kberry.server.statistics;
 
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tools.vlab.kberry.core.PositionPath;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 
 @Data
 public class Statistics {
+    private static final Logger Log = LoggerFactory.getLogger(Statistics.class);
+
     private final ElectricityStatistics electricity;
     private final PresentStatistics present;
     private final TemperaturStatistics temperatur;
     private final VOCStatistics voc;
     private final HumidityStatistics humidity;
+    private final StatisticOptions options;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private Future<Void> stopping;
 
     public Statistics(Vertx vertx) {
-        electricity = new ElectricityStatistics(vertx);
-        present = new PresentStatistics(vertx);
-        temperatur = new TemperaturStatistics(vertx);
-        voc = new VOCStatistics(vertx);
-        humidity = new HumidityStatistics(vertx);
+        this(vertx, new StatisticOptions());
+    }
+
+    public Statistics(Vertx vertx, StatisticOptions options) {
+        this.options = options;
+        electricity = new ElectricityStatistics(vertx, options);
+        present = new PresentStatistics(vertx, options);
+        temperatur = new TemperaturStatistics(vertx, options);
+        voc = new VOCStatistics(vertx, options);
+        humidity = new HumidityStatistics(vertx, options);
+    }
+
+    /**
+     * Entfernt abgelaufene Segmente aller Statistiken nacheinander.
+     * Ein Fehler bei einer Statistik hält die übrigen nicht auf.
+     */
+    public Future<Void> applyRetention() {
+        Future<Void> result = Future.succeededFuture();
+        for (Statistic<?> statistic : all()) {
+            result = result.compose(none -> statistic.applyRetention()
+                    .onSuccess(dropped -> {
+                        if (dropped > 0) Log.info("Retention removed {} segments of {}", dropped, statistic.getName());
+                    })
+                    .<Void>mapEmpty()
+                    .recover(cause -> {
+                        Log.error("Retention of {} failed", statistic.getName(), cause);
+                        return Future.succeededFuture();
+                    }));
+        }
+        return result;
+    }
+
+    /**
+     * Sammelabfrage über alle Statistiken, z.B. für eine Übersicht aller Räume.
+     * Je Statistik ein Durchgang, siehe {@link Statistic#aggregate(long, long, Collection, Set)}.
+     *
+     * @param parallel alle Statistiken gleichzeitig abfragen statt nacheinander
+     * @return Ergebnis je Statistik, Schlüssel ist {@link Statistic#getName()}
+     */
+    public Future<Map<String, SeriesAggregates>> aggregate(long from, long to,
+                                                           Collection<? extends PositionPath> positionPaths,
+                                                           Set<Aggregation> aggregations, boolean parallel) {
+        return aggregate(statistic -> statistic.aggregate(from, to, positionPaths, aggregations), parallel);
     }
 
+    /**
+     * Wie {@link #aggregate(long, long, Collection, Set, boolean)}, aber je Series unterhalb von positionPath
+     */
+    public Future<Map<String, SeriesAggregates>> aggregateBelow(long from, long to, PositionPath positionPath,
+                                                                Set<Aggregation> aggregations, boolean parallel) {
+        return aggregate(statistic -> statistic.aggregateBelow(from, to, positionPath, aggregations), parallel);
+    }
+
+    private Future<Map<String, SeriesAggregates>> aggregate(Function<Statistic<?>, Future<SeriesAggregates>> query,
+                                                            boolean parallel) {
+        Map<String, SeriesAggregates> results = new LinkedHashMap<>();
+        if (parallel) {
+            List<Future<SeriesAggregates>> futures = all().stream().map(query).toList();
+            return Future.all(futures).map(done -> {
+                for (int i = 0; i < futures.size(); i++) {
+                    results.put(all().get(i).getName(), futures.get(i).result());
+                }
+                return results;
+            });
+        }
+        Future<Void> result = Future.succeededFuture();
+        for (Statistic<?> statistic : all()) {
+            result = result.compose(none -> query.apply(statistic)
+                    .onSuccess(aggregates -> results.put(statistic.getName(), aggregates))
+                    .mapEmpty());
+        }
+        return result.map(results);
+    }
+
+    /**
+     * Alle Statistiken, z.B. um sich für neue Werte anzumelden ({@link Statistic#onAppend})
+     */
+    public List<Statistic<?>> all() {
+        return List.of(temperatur, voc, present, humidity, electricity);
+    }
+
+    /**
+     * Schreibt ausstehende Werte aller Statistiken und schließt die Dateien.
+     * Weitere Aufrufe, z.B. vom Scheduler und vom Shutdown-Hook, erhalten dasselbe Ergebnis.
+     */
+    public synchronized Future<Void> stop() {
+        if (stopping == null) {
+            stopping = temperatur.stop()
+                    .compose(none -> voc.stop())
+                    .compose(none -> present.stop())
+                    .compose(none -> humidity.stop())
+                    .compose(none -> electricity.stop());
+        }
+        return stopping;
+    }
 }
@@ -5,11 +5,26 @@ import io.vertx.core.Promise;
 import tools.vlab.kberry.core.devices.KNXDevices;
 import tools.vlab.kberry.core.devices.sensor.*;
 
-public class StatisticsScheduler extends AbstractVerticle {
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Erfasst die Sensorwerte je Statistik entweder jede Minute ({@link Capture.Mode#PERIODIC})
+ * oder nur bei Änderung über die Schwelle bzw. nach dem Heartbeat ({@link Capture.Mode#ON_CHANGE}).
+ * Präsenzmelder melden Änderungen sofort, die übrigen Sensoren werden im Abstand
+ * {@link StatisticOptions#getCaptureCheckInterval()} auf Änderungen geprüft.
+ */
+public class StatisticsScheduler extends AbstractVerticle implements PresenceStatus {
 
     private final Statistics statistics;
     private final KNXDevices devices;
+    private final Map<String, CaptureFilter> captureFilters = new HashMap<>();
     private Long timerId = null;
+    private Long changeTimerId = null;
+    private Long retentionTimerId = null;
+    private boolean retentionRunning = false;
 
     public StatisticsScheduler(Statistics statistics, KNXDevices devices) {
         this.statistics = statistics;
@@ -23,25 +38,95 @@ public class StatisticsScheduler extends AbstractVerticle {
                 .compose(none -> this.statistics.getPresent().start())
                 .compose(none -> this.statistics.getHumidity().start())
                 .compose(none -> this.statistics.getElectricity().start())
-                .onSuccess(none -> startPromise.complete())
+                .onSuccess(none -> {
+                    start();
+                    startPromise.complete();
+                })
                 .onFailure(startPromise::fail);
     }
 
     @Override
     public void start() {
-        timerId = this.getVertx().setPeriodic(60 * 1000, (id) -> {
-            devices.getKNXDevices(TemperatureSensor.class).forEach(device -> statistics.getTemperatur().append(new TemperaturStatistics.TemperatureEntry(device.getPositionPath().getPath(), device.getCurrentTemp())));
-            devices.getKNXDevices(VOCSensor.class).forEach(device -> statistics.getVoc().append(new VOCStatistics.VOCEntry(device.getPositionPath().getPath(), device.getCurrentPPM())));
-            devices.getKNXDevices(PresenceSensor.class).forEach(device -> statistics.getPresent().append(new PresentStatistics.PresenceEntry(device.getPositionPath().getPath(), device.isPresent())));
-            devices.getKNXDevices(HumiditySensor.class).forEach(device -> statistics.getHumidity().append(new HumidityStatistics.HumidityEntry(device.getPositionPath().getPath(), device.getCurrentHumidity())));
-            devices.getKNXDevices(ElectricitySensor.class).forEach(device -> statistics.getElectricity().append(new ElectricityStatistics.ElectricityEntry(device.getPositionPath().getPath(), device.getCurrentKWHMeter())));
-        });
+        StatisticOptions options = statistics.getOptions();
+        for (Statistic<?> statistic : List.of(statistics.getTemperatur(), statistics.getVoc(), statistics.getPresent(),
+                statistics.getHumidity(), statistics.getElectricity())) {
+            Capture capture = options.getCapture(statistic.getName());
+            if (capture.isOnChange()) {
+                captureFilters.put(statistic.getName(), new CaptureFilter(capture));
+            }
+        }
+        timerId = this.getVertx().setPeriodic(60 * 1000, (id) -> capture(Capture.Mode.PERIODIC));
+        if (!captureFilters.isEmpty()) {
+            long checkInterval = options.getCaptureCheckInterval().toMillis();
+            changeTimerId = this.getVertx().setPeriodic(checkInterval, (id) -> capture(Capture.Mode.ON_CHANGE));
+        }
+        if (captureFilters.containsKey(statistics.getPresent().getName())) {
+            devices.getKNXDevices(PresenceSensor.class).forEach(device -> device.addListener(this));
+        }
+        long retentionInterval = statistics.getOptions().getRetentionInterval().toMillis();
+        retentionTimerId = this.getVertx().setPeriodic(60 * 1000, retentionInterval, (id) -> applyRetention());
+    }
+
+    @Override
+    public void presenceChanged(PresenceSensor sensor, boolean available) {
+        // Meldungen kommen aus dem KNX-Thread
+        this.context.runOnContext(none -> record(Capture.Mode.ON_CHANGE, Instant.now().toEpochMilli(), statistics.getPresent(),
+                new PresentStatistics.PresenceEntry(sensor.getPositionPath().getPath(), available)));
+    }
+
+    private void capture(Capture.Mode mode) {
+        long now = Instant.now().toEpochMilli();
+        if (captures(statistics.getTemperatur(), mode)) {
+            devices.getKNXDevices(TemperatureSensor.class).forEach(device -> record(mode, now, statistics.getTemperatur(), new TemperaturStatistics.TemperatureEntry(device.getPositionPath().getPath(), device.getCurrentTemp())));
+        }
+        if (captures(statistics.getVoc(), mode)) {
+            devices.getKNXDevices(VOCSensor.class).forEach(device -> record(mode, now, statistics.getVoc(), new VOCStatistics.VOCEntry(device.getPositionPath().getPath(), device.getCurrentPPM())));
+        }
+        if (captures(statistics.getPresent(), mode)) {
+            devices.getKNXDevices(PresenceSensor.class).forEach(device -> record(mode, now, statistics.getPresent(), new PresentStatistics.PresenceEntry(device.getPositionPath().getPath(), device.isPresent())));
+        }
+        if (captures(statistics.getHumidity(), mode)) {
+            devices.getKNXDevices(HumiditySensor.class).forEach(device -> record(mode, now, statistics.getHumidity(), new HumidityStatistics.HumidityEntry(device.getPositionPath().getPath(), device.getCurrentHumidity())));
+        }
+        if (captures(statistics.getElectricity(), mode)) {
+            devices.getKNXDevices(ElectricitySensor.class).forEach(device -> record(mode, now, statistics.getElectricity(), new ElectricityStatistics.ElectricityEntry(device.getPositionPath().getPath(), device.getCurrentKWHMeter())));
+        }
+    }
+
+    private boolean captures(Statistic<?> statistic, Capture.Mode mode) {
+        boolean onChange = captureFilters.containsKey(statistic.getName());
+        return onChange == (mode == Capture.Mode.ON_CHANGE);
+    }
+
+    private <T extends StatisticEntry> void record(Capture.Mode mode, long now, Statistic<T> statistic, T entry) {
+        if (mode == Capture.Mode.ON_CHANGE) {
+            CaptureFilter filter = captureFilters.get(statistic.getName());
+            if (filter == null || !filter.accept(entry.positionPath(), entry.value(), now)) return;
+        }
+        statistic.append(now, entry);
+    }
+
+    private void applyRetention() {
+        if (retentionRunning) return;
+        retentionRunning = true;
+        statistics.applyRetention()
+                .onComplete(none -> retentionRunning = false);
     }
 
     @Override
-    public void stop() {
+    public void stop(Promise<Void> stopPromise) {
         if (timerId != null) {
             this.getVertx().cancelTimer(timerId);
         }
+        if (changeTimerId != null) {
+            this.getVertx().cancelTimer(changeTimerId);
+        }
+        if (retentionTimerId != null) {
+            this.getVertx().cancelTimer(retentionTimerId);
+        }
+        if (captureFilters.containsKey(statistics.getPresent().getName())) {
+            devices.getKNXDevices(PresenceSensor.class).forEach(device -> device.removeListener(this));
+        }
+        this.statistics.stop().onComplete(stopPromise);
     }
 }
@@ -3,13 +3,12 @@ package tools.vlab.kberry.server.statistics;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.storage.LatestValues;
+import tools.vlab.kberry.server.statistics.storage.PathFilter;
+import tools.vlab.kberry.server.statistics.storage.Rollup;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.OptionalDouble;
-import java.util.stream.Collectors;
 
 public class TemperaturStatistics
         extends Statistic<TemperaturStatistics.TemperatureEntry> {
@@ -18,6 +17,10 @@ public class TemperaturStatistics
         super(vertx, "stat/temperature.csv");
     }
 
+    public TemperaturStatistics(Vertx vertx, StatisticOptions options) {
+        super(vertx, "stat/temperature.csv", options);
+    }
+
     @Override
     protected String serializeValue(TemperatureEntry value) {
         return value.toString();
@@ -28,25 +31,22 @@ public class TemperaturStatistics
         return TemperatureEntry.fromString(line);
     }
 
-    public Future<Double> calculateAverage(long from, long to, PositionPath positionPath) {
-        return getValues(from, to)
-                .map(values -> {
-                    OptionalDouble avg = values.values().stream()
-                            .filter(e -> e.positionPath().equalsIgnoreCase(positionPath.getPath()))
-                            .mapToDouble(TemperatureEntry::temperature)
-                            .average();
+    /**
+     * Temperaturen gelten je Fühler, nicht für alle Fühler unterhalb des Pfads
+     */
+    @Override
+    protected PathFilter filterOf(PositionPath positionPath) {
+        return samePath(positionPath);
+    }
 
-                    return avg.isPresent() ? avg.getAsDouble() : Double.NaN;
-                });
+    public Future<Double> calculateAverage(long from, long to, PositionPath positionPath) {
+        return aggregate(from, to, samePath(positionPath))
+                .map(Rollup::average);
     }
 
     public Future<Double> getCurrentTemperature(PositionPath positionPath) {
-        return getValues(0, Instant.now().toEpochMilli())
-                .map(values -> values.values().stream()
-                        .filter(e -> e.positionPath().equalsIgnoreCase(positionPath.getPath()))
-                        .reduce((first, second) -> second) // letzter Eintrag
-                        .map(TemperatureEntry::temperature)
-                        .orElse(null));
+        LatestValues.Latest current = getLatest(positionPath.getPath());
+        return Future.succeededFuture(current == null ? null : current.value());
     }
 
     public Future<Double> getAverageLastHour(PositionPath positionPath) {
@@ -73,26 +73,53 @@ public class TemperaturStatistics
         return calculateAverage(from, to, positionPath);
     }
 
+    /**
+     * Temperatur, unter dem der Anteil quantile des letzten Tages lag, z.B. 0.95 für p95
+     */
+    public Future<Double> getPercentileLastDay(PositionPath positionPath, double quantile) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getDistribution(from, to, positionPath)
+                .map(histogram -> histogram.quantile(quantile));
+    }
+
+    /**
+     * Minuten des letzten Tages mit Temperatur ab threshold (°C)
+     */
+    public Future<Double> getMinutesAboveLastDay(PositionPath positionPath, double threshold) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getDistribution(from, to, positionPath)
+                .map(histogram -> histogram.minutesAtLeast(threshold));
+    }
+
     public Future<Boolean> hasValuesLastHour(PositionPath positionPath) {
-        return getValuesLastHour()
-                .map(values -> values.values().stream()
-                        .anyMatch(v -> v.positionPath().equalsIgnoreCase(positionPath.getPath())));
+        LatestValues.Latest current = getLatest(positionPath.getPath());
+        long from = Instant.now().minus(1, ChronoUnit.HOURS).toEpochMilli();
+        return Future.succeededFuture(current != null && current.timestamp() >= from);
+    }
+
+    public Future<TimeSeries> getValuesLastDay(PositionPath positionPath) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getValues(from, to, samePath(positionPath));
     }
 
-    public Future<Map<Long, Double>> getValuesLastDay(PositionPath positionPath) {
-        return getValuesLastDay()
-                .map(values -> values.entrySet().stream()
-                        .filter(e -> e.getValue().positionPath()
-                                .equalsIgnoreCase(positionPath.getPath()))
-                        .collect(Collectors.toMap(
-                                Map.Entry::getKey,
-                                e -> e.getValue().temperature(),
-                                (a, b) -> b,
-                                LinkedHashMap::new
-                        )));
+    /**
+     * Verlauf des letzten Tags mit höchstens maxPoints Punkten (LTTB), z.B. für Diagramme
+     */
+    public Future<TimeSeries> getValuesLastDay(PositionPath positionPath, int maxPoints) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getValuesDownsampled(from, to, samePath(positionPath), maxPoints, Downsampling.LTTB);
     }
 
-    public record TemperatureEntry(String positionPath, double temperature) {
+    public record TemperatureEntry(String positionPath, double temperature) implements StatisticEntry {
+
+        @Override
+        public double value() {
+            return temperature;
+        }
 
         @Override
         public String toString() {
@@ -0,0 +1,232 @@
+package tools.vlab.kberry.server.statistics;
+
+import tools.vlab.kberry.server.statistics.storage.SampleConsumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+
+/**
+ * Ergebnis einer Abfrage in Spalten: Zeitstempel, Series-Id und Wert je Zeile.
+ * Werte mit gleichem Zeitstempel bleiben erhalten, die Zeilen liegen in Lesereihenfolge vor.
+ * Die Series-Ids gelten nur innerhalb dieses Ergebnisses, siehe {@link #positionPath(int)}.
+ */
+public final class TimeSeries {
+
+    static final int BYTES_PER_ROW = Long.BYTES + Integer.BYTES + Double.BYTES;
+
+    private static final TimeSeries EMPTY = new TimeSeries(new long[0], new int[0], new double[0], 0, new String[0]);
+
+    private final long[] timestamps;
+    private final int[] series;
+    private final double[] values;
+    private final int size;
+    private final String[] positionPaths;
+
+    private TimeSeries(long[] timestamps, int[] series, double[] values, int size, String[] positionPaths) {
+        this.timestamps = timestamps;
+        this.series = series;
+        this.values = values;
+        this.size = size;
+        this.positionPaths = positionPaths;
+    }
+
+    public static TimeSeries empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long timestamp(int index) {
+        return timestamps[checkIndex(index)];
+    }
+
+    public int seriesId(int index) {
+        return series[checkIndex(index)];
+    }
+
+    public double value(int index) {
+        return values[checkIndex(index)];
+    }
+
+    /**
+     * Anzahl unterschiedlicher Pfade im Ergebnis, Ids laufen von 0 bis seriesCount() - 1
+     */
+    public int seriesCount() {
+        return positionPaths.length;
+    }
+
+    public String positionPath(int seriesId) {
+        return positionPaths[seriesId];
+    }
+
+    /**
+     * Kopie der Zeitstempel, exakt size() lang
+     */
+    public long[] timestamps() {
+        return Arrays.copyOf(timestamps, size);
+    }
+
+    public int[] seriesIds() {
+        return Arrays.copyOf(series, size);
+    }
+
+    public double[] values() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Nur die Zeilen, deren Pfad zum Filter passt. Der Filter wird einmal pro Series ausgewertet.
+     */
+    public TimeSeries select(Predicate<String> positionPaths) {
+        boolean[] selected = new boolean[this.positionPaths.length];
+        boolean all = true;
+        for (int id = 0; id < selected.length; id++) {
+            selected[id] = positionPaths.test(this.positionPaths[id]);
+            all &= selected[id];
+        }
+        if (all) return this;
+        Builder builder = new Builder();
+        for (int i = 0; i < size; i++) {
+            if (selected[series[i]]) {
+                builder.add(timestamps[i], this.positionPaths[series[i]], values[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    public void forEach(SampleConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(timestamps[i], positionPaths[series[i]], values[i]);
+        }
+    }
+
+    public double sum() {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    public OptionalDouble average() {
+        return size == 0 ? OptionalDouble.empty() : OptionalDouble.of(sum() / size);
+    }
+
+    public OptionalDouble min() {
+        if (size == 0) return OptionalDouble.empty();
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, values[i]);
+        }
+        return OptionalDouble.of(min);
+    }
+
+    public OptionalDouble max() {
+        if (size == 0) return OptionalDouble.empty();
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return OptionalDouble.of(max);
+    }
+
+    /**
+     * Größter Zeitstempel, dessen Wert zum Filter passt, -1 wenn keiner passt
+     */
+    public long lastTimestamp(DoublePredicate valueFilter) {
+        long last = -1;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] > last && valueFilter.test(values[i])) {
+                last = timestamps[i];
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Gleiche Zeilen mit Arrays in genau passender Länge
+     */
+    TimeSeries trimmed() {
+        if (timestamps.length == size) return this;
+        return new TimeSeries(timestamps(), seriesIds(), values(), size, positionPaths);
+    }
+
+    /**
+     * Ungefährer Speicherbedarf, für das Budget des {@link QueryCache}
+     */
+    long sizeInBytes() {
+        return 64 + (long) timestamps.length * BYTES_PER_ROW + positionPaths.length * 8L;
+    }
+
+    private int checkIndex(int index) {
+        return Objects.checkIndex(index, size);
+    }
+
+    /**
+     * Sammelt Zeilen in wachsenden primitiven Arrays
+     */
+    public static final class Builder implements SampleConsumer {
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] timestamps;
+        private int[] series;
+        private double[] values;
+        private int size;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> positionPaths = new ArrayList<>();
+
+        public Builder() {
+            this(INITIAL_CAPACITY);
+        }
+
+        public Builder(int capacity) {
+            this.timestamps = new long[Math.max(capacity, 2)];
+            this.series = new int[timestamps.length];
+            this.values = new double[timestamps.length];
+        }
+
+        @Override
+        public void accept(long timestamp, String positionPath, double value) {
+            add(timestamp, positionPath, value);
+        }
+
+        public Builder add(long timestamp, String positionPath, double value) {
+            if (size == timestamps.length) {
+                int capacity = size + (size >> 1);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                series = Arrays.copyOf(series, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            Integer id = ids.get(positionPath);
+            if (id == null) {
+                id = positionPaths.size();
+                ids.put(positionPath, id);
+                positionPaths.add(positionPath);
+            }
+            timestamps[size] = timestamp;
+            series[size] = id;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public TimeSeries build() {
+            if (size == 0) return EMPTY;
+            return new TimeSeries(timestamps, series, values, size, positionPaths.toArray(String[]::new));
+        }
+    }
+}
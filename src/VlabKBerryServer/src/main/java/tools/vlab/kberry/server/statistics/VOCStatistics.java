@@ -3,10 +3,11 @@ package tools.vlab.kberry.server.statistics;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import tools.vlab.kberry.core.PositionPath;
+import tools.vlab.kberry.server.statistics.storage.LatestValues;
+import tools.vlab.kberry.server.statistics.storage.Rollup;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.OptionalDouble;
 
 public class VOCStatistics extends Statistic<VOCStatistics.VOCEntry> {
 
@@ -14,6 +15,10 @@ public class VOCStatistics extends Statistic<VOCStatistics.VOCEntry> {
         super(vertx, "stat/voc.csv");
     }
 
+    public VOCStatistics(Vertx vertx, StatisticOptions options) {
+        super(vertx, "stat/voc.csv", options);
+    }
+
     @Override
     protected String serializeValue(VOCEntry value) {
         return value.toString();
@@ -29,28 +34,16 @@ public class VOCStatistics extends Statistic<VOCStatistics.VOCEntry> {
      * Filtert nach Präfix (Raum, Stockwerk, Gebäude)
      */
     public Future<Double> calculateAverage(long from, long to, PositionPath positionPath) {
-        String pathPrefix = positionPath.getPath().toLowerCase();
-        return getValues(from, to)
-                .map(values -> {
-                    OptionalDouble avg = values.values().stream()
-                            .filter(e -> e.positionPath().toLowerCase().startsWith(pathPrefix))
-                            .mapToDouble(VOCEntry::co2)
-                            .average();
-                    return avg.isPresent() ? avg.getAsDouble() : Double.NaN;
-                });
+        return aggregate(from, to, pathPrefix(positionPath))
+                .map(Rollup::average);
     }
 
     /**
      * Letzter verfügbarer CO2-Wert für den exakten Pfad
      */
     public Future<Double> getCurrentCo2(PositionPath positionPath) {
-        String path = positionPath.getPath();
-        return getValues(0, Instant.now().toEpochMilli())
-                .map(values -> values.values().stream()
-                        .filter(e -> e.positionPath.equalsIgnoreCase(path))
-                        .reduce((first, second) -> second) // letzter Eintrag
-                        .map(VOCEntry::co2)
-                        .orElse(null));
+        LatestValues.Latest current = getLatest(positionPath.getPath());
+        return Future.succeededFuture(current == null ? null : current.value());
     }
 
     public Future<Double> getAverageLastHour(PositionPath positionPath) {
@@ -77,11 +70,30 @@ public class VOCStatistics extends Statistic<VOCStatistics.VOCEntry> {
         return calculateAverage(from, to, positionPath);
     }
 
+    /**
+     * CO2-Wert, unter dem der Anteil quantile des letzten Tages lag, z.B. 0.95 für p95
+     */
+    public Future<Double> getPercentileLastDay(PositionPath positionPath, double quantile) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getDistribution(from, to, positionPath)
+                .map(histogram -> histogram.quantile(quantile));
+    }
+
+    /**
+     * Minuten des letzten Tages mit CO2-Wert ab threshold (ppm)
+     */
+    public Future<Double> getMinutesAboveLastDay(PositionPath positionPath, double threshold) {
+        long to = Instant.now().toEpochMilli();
+        long from = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
+        return getDistribution(from, to, positionPath)
+                .map(histogram -> histogram.minutesAtLeast(threshold));
+    }
+
     public Future<Boolean> hasValuesLastHour(PositionPath positionPath) {
-        String path = positionPath.getPath();
-        return getValuesLastHour()
-                .map(values -> values.values().stream()
-                        .anyMatch(v -> v.positionPath.equalsIgnoreCase(path)));
+        LatestValues.Latest current = getLatest(positionPath.getPath());
+        long from = Instant.now().minus(1, ChronoUnit.HOURS).toEpochMilli();
+        return Future.succeededFuture(current != null && current.timestamp() >= from);
     }
 
     public Future<IndoorClimate> getIndoorClimate(PositionPath positionPath) {
@@ -95,7 +107,12 @@ public class VOCStatistics extends Statistic<VOCStatistics.VOCEntry> {
                 });
     }
 
-    public record VOCEntry(String positionPath, double co2) {
+    public record VOCEntry(String positionPath, double co2) implements StatisticEntry {
+
+        @Override
+        public double value() {
+            return co2;
+        }
 
         @Override
         public String toString() {
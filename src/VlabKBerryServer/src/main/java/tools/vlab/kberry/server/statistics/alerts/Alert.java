@@ -0,0 +1,37 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Auslösen oder Aufheben eines Alarms für eine Series
+ *
+ * @param positionPath normalisierter Pfad
+ * @param timestamp    Zeitpunkt des Werts, der den Zustand geändert hat
+ * @param value        dieser Wert
+ */
+public record Alert(String rule, String statistic, String positionPath, State state, long timestamp, double value) {
+
+    public enum State {
+        RAISED,
+        CLEARED
+    }
+
+    public boolean raised() {
+        return state == State.RAISED;
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("rule", rule)
+                .put("statistic", statistic)
+                .put("positionPath", positionPath)
+                .put("state", state.name())
+                .put("timestamp", timestamp)
+                .put("value", value);
+    }
+
+    @Override
+    public String toString() {
+        return "Alert " + rule + " " + state.name().toLowerCase() + " for " + positionPath + ": " + value;
+    }
+}
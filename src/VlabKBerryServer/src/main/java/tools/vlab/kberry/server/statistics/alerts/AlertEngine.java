@@ -0,0 +1,203 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tools.vlab.kberry.server.statistics.Statistic;
+import tools.vlab.kberry.server.statistics.Statistics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Prüft Alarmregeln fortlaufend an jedem neuen Wert der Statistiken ({@link Statistic#onAppend}).
+ * Je Regel und Series wird nur der Zustand im Speicher gehalten (ausgelöst, seit wann die Bedingung gilt,
+ * die Werte des Fensters für die Änderungsrate), die Ablage wird nie gelesen.
+ * Gemeldet wird nur der Wechsel zwischen ausgelöst und aufgehoben. Nach einem Neustart beginnen alle Series
+ * aufgehoben. Werte, die älter als der zuletzt geprüfte Wert der Series sind, werden übergangen.
+ * Eine Regel mit Dauer löst auch ohne weiteren Wert aus, sobald die Dauer seit Beginn der Überschreitung abgelaufen ist.
+ */
+public class AlertEngine {
+
+    private static final Logger Log = LoggerFactory.getLogger(AlertEngine.class);
+
+    private record Point(long timestamp, double value) {
+    }
+
+    private static final class SeriesState {
+        private final ArrayDeque<Point> window = new ArrayDeque<>();
+        private long lastTimestamp = Long.MIN_VALUE;
+        private double lastValue;
+        // Beginn der ununterbrochenen Überschreitung, -1 ohne
+        private long since = -1;
+        // auslösender Alarm, null solange aufgehoben
+        private Alert raised;
+        // Timer für das Ende der Dauer, -1 ohne
+        private long timer = -1;
+
+        /**
+         * Änderung je Minute seit dem ältesten Wert im Fenster, NaN ohne älteren Wert
+         */
+        private double rate(long timestamp, double value, long windowMs) {
+            while (!window.isEmpty() && window.peekFirst().timestamp() < timestamp - windowMs) {
+                window.pollFirst();
+            }
+            Point first = window.peekFirst();
+            window.addLast(new Point(timestamp, value));
+            if (first == null || first.timestamp() >= timestamp) {
+                return Double.NaN;
+            }
+            return (value - first.value()) / (timestamp - first.timestamp()) * 60_000d;
+        }
+    }
+
+    private static final class RuleState {
+        private final AlertRule rule;
+        private final Map<String, SeriesState> series = new HashMap<>();
+
+        private RuleState(AlertRule rule) {
+            this.rule = rule;
+        }
+
+        /**
+         * @return Wechsel des Zustands, null ohne
+         */
+        private Alert evaluate(long timestamp, String positionPath, double value) {
+            SeriesState state = series.computeIfAbsent(positionPath, p -> new SeriesState());
+            if (timestamp < state.lastTimestamp) return null;
+            state.lastTimestamp = timestamp;
+            state.lastValue = value;
+            double rate = rule.hasRate() ? state.rate(timestamp, value, rule.rateWindow().toMillis()) : Double.NaN;
+            if (state.raised != null) {
+                if (!rule.clears(value)) return null;
+                state.raised = null;
+                state.since = -1;
+                return new Alert(rule.name(), rule.statistic(), positionPath, Alert.State.CLEARED, timestamp, value);
+            }
+            if (!rule.exceeds(value) || !rule.matchesRate(rate)) {
+                state.since = -1;
+                return null;
+            }
+            if (state.since < 0) {
+                state.since = timestamp;
+            }
+            if (timestamp - state.since < rule.duration().toMillis()) return null;
+            state.raised = new Alert(rule.name(), rule.statistic(), positionPath, Alert.State.RAISED, timestamp, value);
+            return state.raised;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Map<String, List<RuleState>> rulesByStatistic = new HashMap<>();
+    private final Map<String, AlertRule> rules = new HashMap<>();
+    private final List<AlertNotifier> notifiers = new CopyOnWriteArrayList<>();
+
+    public AlertEngine(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    public synchronized AlertEngine addRule(AlertRule rule) {
+        if (rules.putIfAbsent(rule.name(), rule) != null) {
+            throw new IllegalArgumentException("Alert rule " + rule.name() + " already exists");
+        }
+        rulesByStatistic.computeIfAbsent(rule.statistic(), s -> new ArrayList<>()).add(new RuleState(rule));
+        return this;
+    }
+
+    public AlertEngine addNotifier(AlertNotifier notifier) {
+        notifiers.add(notifier);
+        return this;
+    }
+
+    /**
+     * Prüft ab jetzt jeden neuen Wert aller Statistiken, auch für später hinzugefügte Regeln
+     */
+    public void attach(Statistics statistics) {
+        for (Statistic<?> statistic : statistics.all()) {
+            String name = statistic.getName();
+            statistic.onAppend(sample -> accept(name, sample.timestamp(), sample.positionPath(), sample.value()));
+        }
+    }
+
+    /**
+     * Prüft einen neuen Wert gegen die Regeln seiner Statistik und meldet Wechsel an alle Empfänger
+     *
+     * @param positionPath normalisierter Pfad
+     */
+    public void accept(String statistic, long timestamp, String positionPath, double value) {
+        publish(evaluate(statistic, timestamp, positionPath, value));
+    }
+
+    /**
+     * Derzeit ausgelöste Alarme je Regel und Series, jeweils mit dem auslösenden Wert
+     */
+    public synchronized List<Alert> active() {
+        List<Alert> result = new ArrayList<>();
+        rulesByStatistic.values().forEach(states -> states.forEach(state -> state.series.values().forEach(series -> {
+            if (series.raised != null) {
+                result.add(series.raised);
+            }
+        })));
+        return result;
+    }
+
+    private synchronized List<Alert> evaluate(String statistic, long timestamp, String positionPath, double value) {
+        List<RuleState> states = rulesByStatistic.get(statistic);
+        if (states == null) return List.of();
+        List<Alert> changes = new ArrayList<>(1);
+        for (RuleState state : states) {
+            if (!state.rule.positionPaths().test(positionPath)) continue;
+            Alert alert = state.evaluate(timestamp, positionPath, value);
+            if (alert != null) {
+                changes.add(alert);
+            }
+            schedule(state, positionPath);
+        }
+        return changes;
+    }
+
+    /**
+     * Plant das Auslösen nach Ablauf der Dauer, solange die Überschreitung ohne Alarm anhält, sonst wird der Timer verworfen
+     */
+    private void schedule(RuleState state, String positionPath) {
+        SeriesState series = state.series.get(positionPath);
+        if (series == null) return;
+        if (series.raised != null || series.since < 0) {
+            if (series.timer >= 0) {
+                vertx.cancelTimer(series.timer);
+                series.timer = -1;
+            }
+            return;
+        }
+        if (series.timer >= 0) return;
+        long since = series.since;
+        long delay = Math.max(1, since + state.rule.duration().toMillis() - System.currentTimeMillis());
+        series.timer = vertx.setTimer(delay, id -> publish(expire(state, positionPath, since)));
+    }
+
+    /**
+     * Löst aus, wenn die Überschreitung seit since ohne neuen Wert die Dauer erreicht hat
+     */
+    private synchronized List<Alert> expire(RuleState state, String positionPath, long since) {
+        SeriesState series = state.series.get(positionPath);
+        series.timer = -1;
+        if (series.raised != null || series.since != since) return List.of();
+        series.raised = new Alert(state.rule.name(), state.rule.statistic(), positionPath, Alert.State.RAISED,
+                since + state.rule.duration().toMillis(), series.lastValue);
+        return List.of(series.raised);
+    }
+
+    private void publish(List<Alert> changes) {
+        for (Alert alert : changes) {
+            Log.info("{}", alert);
+            for (AlertNotifier notifier : notifiers) {
+                notifier.notify(alert)
+                        .onFailure(cause -> Log.error("Notify {} failed", alert, cause));
+            }
+        }
+    }
+}
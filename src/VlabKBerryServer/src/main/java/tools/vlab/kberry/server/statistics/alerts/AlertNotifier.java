@@ -0,0 +1,12 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import io.vertx.core.Future;
+
+/**
+ * Gibt ausgelöste und aufgehobene Alarme weiter, z.B. per MQTT oder Mail
+ */
+@FunctionalInterface
+public interface AlertNotifier {
+
+    Future<Void> notify(Alert alert);
+}
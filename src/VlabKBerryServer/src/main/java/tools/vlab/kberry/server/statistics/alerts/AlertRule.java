@@ -0,0 +1,134 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import tools.vlab.kberry.server.statistics.storage.PathFilter;
+
+import java.time.Duration;
+
+/**
+ * Regel für einen Alarm je Series einer Statistik, z.B.
+ * {@code AlertRule.above("co2-high", "voc", 1500).hysteresis(100).lasting(Duration.ofMinutes(10))}
+ * oder {@code AlertRule.above("humidity-rising", "humidity", 70).rising(0.1)}.
+ * Ausgelöst wird, wenn der Schwellwert überschritten (bzw. unterschritten) ist, die Änderungsrate passt und
+ * beides seit duration ohne Unterbrechung gilt. Aufgehoben wird erst jenseits der Hysterese,
+ * die Änderungsrate spielt dafür keine Rolle.
+ *
+ * @param name          eindeutiger Name, z.B. für das MQTT-Topic
+ * @param statistic     Name der Statistik, z.B. "voc" (siehe {@link tools.vlab.kberry.server.statistics.Statistic#getName()})
+ * @param positionPaths Series, für die die Regel gilt
+ * @param minRate       Änderung je Minute, ab der ausgelöst wird, positiv = steigend, negativ = fallend,
+ *                      NaN = ohne Bedingung
+ * @param rateWindow    Zeitraum, über den die Änderungsrate gemessen wird
+ * @param duration      so lange muss die Bedingung gelten, ZERO = sofort
+ */
+public record AlertRule(String name, String statistic, PathFilter positionPaths, Direction direction,
+                        double threshold, double hysteresis, double minRate, Duration rateWindow,
+                        Duration duration) {
+
+    public enum Direction {
+        ABOVE,
+        BELOW
+    }
+
+    public static final Duration DEFAULT_RATE_WINDOW = Duration.ofMinutes(10);
+
+    public AlertRule {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name must not be empty");
+        }
+        if (Double.isNaN(threshold)) {
+            throw new IllegalArgumentException("threshold must be a number");
+        }
+        if (hysteresis < 0) {
+            throw new IllegalArgumentException("hysteresis must not be negative: " + hysteresis);
+        }
+        if (minRate == 0) {
+            throw new IllegalArgumentException("minRate must not be zero");
+        }
+        if (rateWindow.isNegative() || rateWindow.isZero()) {
+            throw new IllegalArgumentException("rateWindow must be positive: " + rateWindow);
+        }
+        if (duration.isNegative()) {
+            throw new IllegalArgumentException("duration must not be negative: " + duration);
+        }
+    }
+
+    /**
+     * Alarm, sobald ein Wert threshold übersteigt
+     */
+    public static AlertRule above(String name, String statistic, double threshold) {
+        return new AlertRule(name, statistic, PathFilter.ALL, Direction.ABOVE, threshold, 0, Double.NaN,
+                DEFAULT_RATE_WINDOW, Duration.ZERO);
+    }
+
+    /**
+     * Alarm, sobald ein Wert threshold unterschreitet
+     */
+    public static AlertRule below(String name, String statistic, double threshold) {
+        return new AlertRule(name, statistic, PathFilter.ALL, Direction.BELOW, threshold, 0, Double.NaN,
+                DEFAULT_RATE_WINDOW, Duration.ZERO);
+    }
+
+    /**
+     * Nur für diese Series, z.B. {@link PathFilter#prefix(String)} für ein Stockwerk
+     */
+    public AlertRule at(PathFilter positionPaths) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, minRate, rateWindow,
+                duration);
+    }
+
+    /**
+     * Aufgehoben wird erst hysteresis unter (bzw. über) dem Schwellwert, damit ein Wert um die Schwelle
+     * nicht bei jeder Messung neu meldet
+     */
+    public AlertRule hysteresis(double hysteresis) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, minRate, rateWindow,
+                duration);
+    }
+
+    /**
+     * Zusätzlich muss der Wert um mindestens perMinute je Minute steigen
+     */
+    public AlertRule rising(double perMinute) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, Math.abs(perMinute),
+                rateWindow, duration);
+    }
+
+    /**
+     * Zusätzlich muss der Wert um mindestens perMinute je Minute fallen
+     */
+    public AlertRule falling(double perMinute) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, -Math.abs(perMinute),
+                rateWindow, duration);
+    }
+
+    public AlertRule rateWindow(Duration rateWindow) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, minRate, rateWindow,
+                duration);
+    }
+
+    /**
+     * Bedingung muss so lange ohne Unterbrechung gelten, z.B. CO2 über 1500 ppm für 10 Minuten
+     */
+    public AlertRule lasting(Duration duration) {
+        return new AlertRule(name, statistic, positionPaths, direction, threshold, hysteresis, minRate, rateWindow,
+                duration);
+    }
+
+    public boolean hasRate() {
+        return !Double.isNaN(minRate);
+    }
+
+    boolean exceeds(double value) {
+        return direction == Direction.ABOVE ? value > threshold : value < threshold;
+    }
+
+    boolean clears(double value) {
+        return direction == Direction.ABOVE ? value < threshold - hysteresis : value > threshold + hysteresis;
+    }
+
+    boolean matchesRate(double perMinute) {
+        if (!hasRate()) return true;
+        if (Double.isNaN(perMinute)) return false;
+        return minRate > 0 ? perMinute >= minRate : perMinute <= minRate;
+    }
+}
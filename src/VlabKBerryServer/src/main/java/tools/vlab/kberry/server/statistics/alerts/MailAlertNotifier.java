@@ -0,0 +1,42 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.ext.mail.MailClient;
+import io.vertx.ext.mail.MailConfig;
+import io.vertx.ext.mail.MailMessage;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Verschickt Alarme als Mail
+ */
+public class MailAlertNotifier implements AlertNotifier {
+
+    private final MailClient client;
+    private final String from;
+    private final List<String> to;
+
+    public MailAlertNotifier(Vertx vertx, MailConfig config, String from, List<String> to) {
+        this(MailClient.create(vertx, config), from, to);
+    }
+
+    public MailAlertNotifier(MailClient client, String from, List<String> to) {
+        this.client = client;
+        this.from = from;
+        this.to = List.copyOf(to);
+    }
+
+    @Override
+    public Future<Void> notify(Alert alert) {
+        MailMessage message = new MailMessage()
+                .setFrom(from)
+                .setTo(to)
+                .setSubject("[KBerry] " + alert)
+                .setText(alert + "\n"
+                        + "Statistic: " + alert.statistic() + "\n"
+                        + "Time: " + Instant.ofEpochMilli(alert.timestamp()) + "\n");
+        return client.sendMail(message).mapEmpty();
+    }
+}
@@ -0,0 +1,36 @@
+package tools.vlab.kberry.server.statistics.alerts;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Future;
+import io.vertx.mqtt.MqttClient;
+
+import java.util.function.Supplier;
+
+/**
+ * Veröffentlicht Alarme als JSON unter "alert/&lt;regel&gt;/&lt;pfad&gt;", retained,
+ * damit neue Empfänger den aktuellen Zustand jeder Series sehen
+ */
+public class MqttAlertNotifier implements AlertNotifier {
+
+    private static final String PREFIX = "alert/";
+
+    private final Supplier<MqttClient> client;
+
+    /**
+     * @param client liefert den verbundenen Client, z.B. den des CommandController, null solange keiner verbunden ist
+     */
+    public MqttAlertNotifier(Supplier<MqttClient> client) {
+        this.client = client;
+    }
+
+    @Override
+    public Future<Void> notify(Alert alert) {
+        MqttClient mqtt = client.get();
+        if (mqtt == null || !mqtt.isConnected()) {
+            return Future.failedFuture(new IllegalStateException("MQTT client not connected"));
+        }
+        String topic = PREFIX + alert.rule() + "/" + alert.positionPath();
+        return mqtt.publish(topic, alert.toJson().toBuffer(), MqttQoS.AT_LEAST_ONCE, false, true)
+                .mapEmpty();
+    }
+}
@@ -0,0 +1,42 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Ersetzt Dateien über eine temporäre Datei, fsync und atomares Umbenennen.
+ * Bei einem Stromausfall bleibt entweder der alte oder der neue Stand erhalten, nie ein halber.
+ */
+public final class AtomicFile {
+
+    private AtomicFile() {
+    }
+
+    public static Future<Void> replace(Vertx vertx, String target, Buffer content) {
+        return vertx.executeBlocking(() -> {
+            replace(Path.of(target), ByteBuffer.wrap(content.getBytes()));
+            return null;
+        });
+    }
+
+    public static void replace(Path target, ByteBuffer content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
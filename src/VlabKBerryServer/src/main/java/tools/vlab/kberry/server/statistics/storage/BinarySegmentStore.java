@@ -0,0 +1,376 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Binäre Ablage in Tages-Segmenten mit Records fester Breite:
+ * <pre>
+ * long   timestamp (epoch millis)
+ * int    series id (siehe {@link SeriesDictionary})
+ * double wert
+ * </pre>
+ * Gelesen wird über einen MappedByteBuffer, ohne String-Allokation pro Zeile.
+ * Ein beim Stromausfall unvollständig geschriebener Record wird vor dem nächsten Anhängen abgeschnitten,
+ * damit die folgenden Records wieder an ihrer Stelle stehen.
+ * Vorhandene CSV-Dateien werden beim ersten Start einmalig übernommen.
+ */
+public class BinarySegmentStore<T> implements StatisticStore<T> {
+
+    private static final Logger Log = LoggerFactory.getLogger(BinarySegmentStore.class);
+    public static final int RECORD_SIZE = Long.BYTES + Integer.BYTES + Double.BYTES;
+    private static final String EXTENSION = ".bin";
+    private static final String MANIFEST = "segments.bin.json";
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final String directory;
+    private final String legacyFile;
+    private final EntryCodec<T> codec;
+    private final SegmentManifest manifest;
+    private final SegmentWriter writer;
+    private final SeriesDictionary dictionary;
+    private final ScanExecutor scans;
+
+    public BinarySegmentStore(Vertx vertx, String directory, String legacyFile, EntryCodec<T> codec, WritePolicy writePolicy,
+                              ScanExecutor scans) {
+        this.vertx = vertx;
+        this.scans = scans;
+        this.fs = vertx.fileSystem();
+        this.directory = directory;
+        this.legacyFile = legacyFile;
+        this.codec = codec;
+        this.manifest = new SegmentManifest(vertx, directory, EXTENSION, MANIFEST);
+        this.writer = new SegmentWriter(vertx, writePolicy, BinarySegmentStore::truncateTornRecord);
+        this.dictionary = new SeriesDictionary(vertx, directory);
+    }
+
+    @Override
+    public Future<Void> start() {
+        return fs.mkdirs(directory)
+                .compose(v -> manifest.load())
+                .compose(v -> dictionary.load())
+                .compose(v -> migrateCsvFiles());
+    }
+
+    @Override
+    public Future<Void> append(long timestamp, T value) {
+        double number = codec.value(value);
+        // den Record erst schreiben, wenn seine ID in series.json steht
+        return dictionary.idOf(codec.positionPath(value))
+                .map(id -> Buffer.buffer(RECORD_SIZE)
+                        .appendLong(timestamp)
+                        .appendInt(id)
+                        .appendDouble(number))
+                .compose(record -> manifest.getOrCreate(timestamp)
+                        .compose(segment -> writer.append(manifest.pathOf(segment), record)))
+                // das Segment kann währenddessen abgegeben worden sein (siehe drain), dann neu eintragen
+                .compose(v -> manifest.getOrCreate(timestamp).mapEmpty());
+    }
+
+    @Override
+    public Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        List<Segment> segments = manifest.overlapping(from, to);
+        if (segments.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        SeriesDictionary.Selection selection = dictionary.select(positionPaths);
+        return scans.scan(segments, (segment, samples) -> scanSegment(segment, from, to, selection, samples), consumer);
+    }
+
+    /**
+     * Läuft exklusiv zum Schreiber, damit kein Aufräumen mit neuen Zeilen kollidiert
+     */
+    @Override
+    public Future<Void> clean(long from) {
+        return writer.exclusive(() -> cleanSegments(from));
+    }
+
+    @Override
+    public long firstTimestamp() {
+        return manifest.firstTimestamp();
+    }
+
+    @Override
+    public Future<Integer> expire(long cutoff) {
+        return manifest.dropBefore(cutoff);
+    }
+
+    @Override
+    public Future<Void> stop() {
+        return writer.close();
+    }
+
+    /**
+     * Verarbeitet eine Segment-Datei, die danach nicht mehr gebraucht wird
+     */
+    @FunctionalInterface
+    public interface SegmentDrain {
+        void accept(Path segment) throws IOException;
+    }
+
+    public SeriesDictionary dictionary() {
+        return dictionary;
+    }
+
+    public List<Segment> segments() {
+        return manifest.all();
+    }
+
+    public List<Segment> segments(long from, long to) {
+        return manifest.overlapping(from, to);
+    }
+
+    /**
+     * Segment des Tags von timestamp, null ohne
+     */
+    public Segment segmentFor(long timestamp) {
+        return manifest.segmentFor(timestamp);
+    }
+
+    public Path pathOf(Segment segment) {
+        return Path.of(manifest.pathOf(segment));
+    }
+
+    /**
+     * Liest ein Segment blockierend, z.B. von einem Worker einer übergeordneten Ablage aus
+     */
+    public void scanSegment(Segment segment, long from, long to, SeriesDictionary.Selection selection,
+                            SampleConsumer consumer) throws IOException {
+        scanSegment(pathOf(segment), from, to, selection, consumer);
+    }
+
+    /**
+     * Übergibt ein Segment exklusiv zum Schreiber an drain (blockierend, auf einem Worker)
+     * und nimmt es danach aus dem Manifest. Die Datei selbst entfernt drain.
+     * Neue Werte für den Tag warten so lange und legen danach ein neues Segment an.
+     */
+    public Future<Void> drain(Segment segment, SegmentDrain drain) {
+        return writer.exclusive(() -> vertx.<Void>executeBlocking(() -> {
+                    drain.accept(pathOf(segment));
+                    return null;
+                })
+                .compose(v -> manifest.remove(segment)));
+    }
+
+    private Future<Void> cleanSegments(long from) {
+        Future<Void> result = Future.succeededFuture();
+        for (Segment segment : manifest.all()) {
+            if (segment.endsBefore(from)) {
+                String path = manifest.pathOf(segment);
+                result = result.compose(v -> manifest.remove(segment))
+                        .compose(v -> fs.exists(path))
+                        .compose(exists -> exists ? fs.delete(path) : Future.succeededFuture());
+            } else if (segment.contains(from)) {
+                Path path = Path.of(manifest.pathOf(segment));
+                result = result.compose(v -> vertx.executeBlocking(() -> {
+                    rewriteSegment(path, from);
+                    return null;
+                }));
+            }
+        }
+        return result;
+    }
+
+    private void scanSegment(Path path, long from, long to, SeriesDictionary.Selection selection,
+                             SampleConsumer consumer) throws IOException {
+        if (!Files.exists(path)) return;
+        try (FileChannel channel = openForRead(path)) {
+            if (channel == null) return;
+            // ein unvollständiger Record am Ende (Abbruch beim Schreiben) wird ignoriert
+            long size = channel.size() - channel.size() % RECORD_SIZE;
+            if (size == 0) return;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int position = 0; position + RECORD_SIZE <= size; position += RECORD_SIZE) {
+                long ts = buffer.getLong(position);
+                if (ts < from || ts > to) continue;
+                int series = buffer.getInt(position + Long.BYTES);
+                if (!selection.contains(series)) continue;
+                consumer.accept(ts, dictionary.pathOf(series), buffer.getDouble(position + Long.BYTES + Integer.BYTES));
+            }
+        }
+    }
+
+    /**
+     * Kürzt das Segment auf ganze Records
+     */
+    private static void truncateTornRecord(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long torn = size % RECORD_SIZE;
+            if (torn == 0) return;
+            channel.truncate(size - torn);
+            channel.force(true);
+            Log.warn("Truncated torn record of {} bytes at the end of {}", torn, path);
+        } catch (NoSuchFileException e) {
+            // neues Segment
+        }
+    }
+
+    /**
+     * @return null, wenn das Segment inzwischen durch die Aufbewahrung entfernt wurde
+     */
+    private static FileChannel openForRead(Path path) throws IOException {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void rewriteSegment(Path path, long from) throws IOException {
+        if (!Files.exists(path)) return;
+        ByteBuffer kept;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size() - channel.size() % RECORD_SIZE;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            kept = ByteBuffer.allocate((int) size);
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int start = buffer.position();
+                long ts = buffer.getLong(start);
+                if (ts >= from) {
+                    kept.put(buffer.slice(start, RECORD_SIZE));
+                }
+                buffer.position(start + RECORD_SIZE);
+            }
+        }
+        kept.flip();
+        AtomicFile.replace(path, kept);
+    }
+
+    // ───────────────────────────────
+    // Migration aus CSV
+    // ───────────────────────────────
+
+    private Future<Void> migrateCsvFiles() {
+        return vertx.executeBlocking(this::csvSources)
+                .compose(sources -> {
+                    if (sources.isEmpty()) return Future.succeededFuture();
+                    Log.info("Migrate {} CSV files into binary segments of {}", sources.size(), directory);
+                    // Tage dieser Migration, erst in "<tag>.bin.tmp" geschrieben
+                    Set<Path> days = new LinkedHashSet<>();
+                    return vertx.executeBlocking(() -> {
+                                long rows = 0;
+                                for (Path source : sources) {
+                                    rows += convertCsvFile(source, days);
+                                }
+                                return rows;
+                            })
+                            // die Tage und Quellen erst abgeben, wenn die neu vergebenen IDs gespeichert sind
+                            .compose(rows -> dictionary.flush().map(rows))
+                            .compose(rows -> vertx.executeBlocking(() -> {
+                                // ersetzt auch Tage aus einem abgebrochenen Lauf, statt sie doppelt anzuhängen
+                                for (Path day : days) {
+                                    Path tmp = tmpOf(day);
+                                    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                                        channel.force(true);
+                                    }
+                                    Files.move(tmp, day, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                                }
+                                for (Path source : sources) {
+                                    Files.move(source, source.resolveSibling(source.getFileName() + ".migrated"),
+                                            StandardCopyOption.REPLACE_EXISTING);
+                                }
+                                Files.deleteIfExists(Path.of(directory, CsvSegmentStore.MANIFEST));
+                                return rows;
+                            }))
+                            .compose(rows -> {
+                                Log.info("Migrated {} rows into {}", rows, directory);
+                                return manifest.rebuild();
+                            });
+                });
+    }
+
+    private List<Path> csvSources() throws IOException {
+        List<Path> sources = new ArrayList<>();
+        if (legacyFile != null && Files.exists(Path.of(legacyFile))) {
+            sources.add(Path.of(legacyFile));
+        }
+        try (Stream<Path> files = Files.list(Path.of(directory))) {
+            files.filter(file -> file.getFileName().toString().endsWith(CsvSegmentStore.EXTENSION))
+                    .sorted()
+                    .forEach(sources::add);
+        }
+        return sources;
+    }
+
+    /**
+     * Schreibt die Zeilen der Quelle in "&lt;tag&gt;.bin.tmp", ein Rest aus einem abgebrochenen Lauf wird
+     * beim ersten Öffnen des Tages verworfen
+     *
+     * @param days Tage dieser Migration, über alle Quellen
+     */
+    private long convertCsvFile(Path source, Set<Path> days) throws IOException {
+        long rows = 0;
+        Segment current = null;
+        DataOutputStream out = null;
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";", 3);
+                if (parts.length < 2) continue;
+                long ts;
+                int series;
+                double value;
+                try {
+                    ts = Long.parseLong(parts[0]);
+                    if (parts.length == 3) {
+                        // IDs aus CSV-Segmenten stammen aus demselben series.json
+                        series = Integer.parseInt(parts[1]);
+                        value = Double.parseDouble(parts[2]);
+                    } else {
+                        T entry = codec.deserialize(parts[1]);
+                        series = dictionary.assign(codec.positionPath(entry));
+                        value = codec.value(entry);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Skip invalid row '{}' in {}", line, source);
+                    continue;
+                }
+                if (current == null || !current.contains(ts)) {
+                    if (out != null) out.close();
+                    current = Segment.ofDay(ts, EXTENSION);
+                    Path day = Path.of(directory, current.name());
+                    StandardOpenOption mode = days.add(day) ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+                    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                            tmpOf(day), StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)));
+                }
+                out.writeLong(ts);
+                out.writeInt(series);
+                out.writeDouble(value);
+                rows++;
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+        return rows;
+    }
+
+    private static Path tmpOf(Path day) {
+        return day.resolveSibling(day.getFileName() + ".tmp");
+    }
+}
@@ -0,0 +1,451 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.parsetools.RecordParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Speichert die Zeilen einer Statistik ("timestamp;series-id;wert") in Tages-Segmenten.
+ * Die Pfade stehen einmalig im {@link SeriesDictionary}, ältere Zeilen im Format
+ * "timestamp;pfad=wert" werden weiterhin gelesen. Zeitstempel, Series-ID bzw. Pfad werden
+ * direkt auf den Bytes geprüft, dekodiert werden nur passende Zeilen.
+ * Abfragen lesen nur die Segmente, die den angefragten Zeitraum überlappen,
+ * und zwar zeilenweise in Blöcken von {@link #CHUNK_SIZE} Bytes auf dem {@link ScanExecutor}.
+ * Eine beim Stromausfall angefangene Zeile wird vor dem nächsten Anhängen abgeschnitten,
+ * ungültige Zeilen werden beim Lesen übersprungen.
+ */
+public class CsvSegmentStore<T> implements StatisticStore<T> {
+
+    private static final Logger Log = LoggerFactory.getLogger(CsvSegmentStore.class);
+    static final String EXTENSION = ".csv";
+    static final String MANIFEST = "segments.json";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte SEPARATOR = ';';
+    private static final byte NEWLINE = '\n';
+    private static final byte EQUALS = '=';
+    // Long.MAX_VALUE hat 19 Stellen
+    private static final int MAX_DIGITS = 19;
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final String directory;
+    private final String legacyFile;
+    private final SegmentManifest manifest;
+    private final SegmentWriter writer;
+    private final EntryCodec<T> codec;
+    private final SeriesDictionary dictionary;
+    private final ScanExecutor scans;
+
+    /**
+     * @param directory  Verzeichnis der Segmente, z.B. "stat/temperature"
+     * @param legacyFile bisherige Einzeldatei, wird beim Start einmalig in Segmente aufgeteilt
+     */
+    public CsvSegmentStore(Vertx vertx, String directory, String legacyFile, EntryCodec<T> codec, WritePolicy writePolicy,
+                           ScanExecutor scans) {
+        this.vertx = vertx;
+        this.scans = scans;
+        this.fs = vertx.fileSystem();
+        this.directory = directory;
+        this.legacyFile = legacyFile;
+        this.codec = codec;
+        this.manifest = new SegmentManifest(vertx, directory, EXTENSION, MANIFEST);
+        this.writer = new SegmentWriter(vertx, writePolicy, CsvSegmentStore::truncateTornLine);
+        this.dictionary = new SeriesDictionary(vertx, directory);
+    }
+
+    @Override
+    public Future<Void> start() {
+        return fs.mkdirs(directory)
+                .compose(v -> manifest.load())
+                .compose(v -> dictionary.load())
+                .compose(v -> migrateLegacyFile());
+    }
+
+    @Override
+    public Future<Void> append(long timestamp, T value) {
+        double number = codec.value(value);
+        // die Zeile erst schreiben, wenn ihre ID in series.json steht
+        return dictionary.idOf(codec.positionPath(value))
+                .compose(id -> manifest.getOrCreate(timestamp)
+                        .compose(segment -> writer.append(manifest.pathOf(segment),
+                                Buffer.buffer(timestamp + ";" + id + ";" + number + "\n"))));
+    }
+
+    /**
+     * Liest nur die Segmente, die [from, to] überlappen, parallel je Segment und zeilenweise.
+     * Zeitstempel und Series-ID werden vor dem Dekodieren des Werts geprüft.
+     */
+    @Override
+    public Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        SeriesDictionary.Selection selection = dictionary.select(positionPaths);
+        return scans.scan(manifest.overlapping(from, to),
+                (segment, samples) -> scanSegment(Path.of(manifest.pathOf(segment)), from, to, positionPaths, selection, samples),
+                consumer);
+    }
+
+    /**
+     * Entfernt alle Zeilen älter als from. Vollständig abgelaufene Segmente
+     * werden gelöscht, nur das Segment an der Grenze wird neu geschrieben.
+     * Läuft exklusiv zum Schreiber, damit kein Aufräumen mit neuen Zeilen kollidiert.
+     */
+    @Override
+    public Future<Void> clean(long from) {
+        return writer.exclusive(() -> cleanSegments(from));
+    }
+
+    @Override
+    public long firstTimestamp() {
+        return manifest.firstTimestamp();
+    }
+
+    @Override
+    public Future<Integer> expire(long cutoff) {
+        return manifest.dropBefore(cutoff);
+    }
+
+    @Override
+    public Future<Void> stop() {
+        return writer.close();
+    }
+
+    private Future<Void> cleanSegments(long from) {
+        Future<Void> result = Future.succeededFuture();
+        for (Segment segment : manifest.all()) {
+            if (segment.endsBefore(from)) {
+                result = result.compose(v -> dropSegment(segment));
+            } else if (segment.contains(from)) {
+                result = result.compose(v -> rewriteSegment(segment, from));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Liest ein Segment blockierend. Eine angefangene Zeile am Ende (Abbruch beim Schreiben) wird ignoriert.
+     */
+    private void scanSegment(Path path, long from, long to, Predicate<String> positionPaths,
+                             SeriesDictionary.Selection selection, SampleConsumer consumer) throws IOException {
+        InputStream in;
+        try {
+            in = Files.newInputStream(path);
+        } catch (NoSuchFileException e) {
+            // inzwischen durch die Aufbewahrung entfernt
+            return;
+        }
+        LegacyPaths legacyPaths = new LegacyPaths(positionPaths);
+        try (in) {
+            byte[] block = new byte[CHUNK_SIZE];
+            int length = 0;
+            int read;
+            while ((read = in.read(block, length, block.length - length)) >= 0) {
+                length += read;
+                int start = 0;
+                for (int end = indexOf(block, NEWLINE, start, length); end >= 0; end = indexOf(block, NEWLINE, start, length)) {
+                    try {
+                        scanLine(block, start, end, from, to, legacyPaths, selection, consumer);
+                    } catch (IllegalArgumentException e) {
+                        Log.warn("Skip invalid row '{}' in {}", new String(block, start, end - start, StandardCharsets.UTF_8), path);
+                    }
+                    start = end + 1;
+                }
+                // die angefangene Zeile an den Anfang des Blocks
+                System.arraycopy(block, start, block, 0, length - start);
+                length -= start;
+                if (length == block.length) {
+                    block = Arrays.copyOf(block, block.length * 2);
+                }
+            }
+        }
+    }
+
+    private void scanLine(byte[] bytes, int start, int end, long from, long to, LegacyPaths legacyPaths,
+                          SeriesDictionary.Selection selection, SampleConsumer consumer) {
+        int separator = indexOf(bytes, SEPARATOR, start, end);
+        long ts = parseNumber(bytes, start, separator);
+        if (ts < from || ts > to) return;
+        int idSeparator = indexOf(bytes, SEPARATOR, separator + 1, end);
+        if (idSeparator > 0) {
+            int id = (int) parseNumber(bytes, separator + 1, idSeparator);
+            if (!selection.contains(id)) return;
+            double value = Double.parseDouble(new String(bytes, idSeparator + 1, end - idSeparator - 1, StandardCharsets.UTF_8));
+            consumer.accept(ts, dictionary.pathOf(id), value);
+        } else {
+            // Zeile im alten Format "pfad=wert", der Pfad wird auf den Bytes geprüft, dekodiert wird nur eine passende Zeile
+            int equals = indexOf(bytes, EQUALS, separator + 1, end);
+            T value = null;
+            String positionPath;
+            if (equals > 0) {
+                positionPath = legacyPaths.select(bytes, separator + 1, equals);
+            } else {
+                value = codec.deserialize(new String(bytes, separator + 1, end - separator - 1, StandardCharsets.UTF_8));
+                positionPath = legacyPaths.select(codec.positionPath(value));
+            }
+            if (positionPath == null) return;
+            if (value == null) {
+                value = codec.deserialize(new String(bytes, separator + 1, end - separator - 1, StandardCharsets.UTF_8));
+            }
+            consumer.accept(ts, positionPath, codec.value(value));
+        }
+    }
+
+    /**
+     * Ergebnis des Filters je Schreibweise eines Pfads im alten Format, für die Dauer eines Scans.
+     * Die Schreibweisen werden direkt mit den Bytes der Zeile verglichen, dekodiert wird jede nur einmal.
+     */
+    private static final class LegacyPaths {
+
+        /**
+         * @param positionPath normalisierter Pfad, null wenn nicht ausgewählt
+         */
+        private record Spelling(byte[] bytes, int hash, String positionPath) {
+        }
+
+        private final Predicate<String> positionPaths;
+        private final List<Spelling> spellings = new ArrayList<>();
+
+        private LegacyPaths(Predicate<String> positionPaths) {
+            this.positionPaths = positionPaths;
+        }
+
+        /**
+         * @return normalisierter Pfad der Bytes [start, end) oder null, wenn er nicht zum Filter passt
+         */
+        private String select(byte[] bytes, int start, int end) {
+            int hash = hash(bytes, start, end);
+            for (Spelling spelling : spellings) {
+                if (spelling.hash() == hash && Arrays.equals(spelling.bytes(), 0, spelling.bytes().length, bytes, start, end)) {
+                    return spelling.positionPath();
+                }
+            }
+            Spelling spelling = new Spelling(Arrays.copyOfRange(bytes, start, end), hash,
+                    filter(new String(bytes, start, end - start, StandardCharsets.UTF_8)));
+            spellings.add(spelling);
+            return spelling.positionPath();
+        }
+
+        /**
+         * Für Zeilen ohne "=", deren Pfad erst im dekodierten Wert steht
+         */
+        private String select(String storedPath) {
+            byte[] bytes = storedPath.getBytes(StandardCharsets.UTF_8);
+            return select(bytes, 0, bytes.length);
+        }
+
+        private String filter(String storedPath) {
+            String normalized = SeriesDictionary.normalize(storedPath);
+            return positionPaths.test(normalized) ? normalized : null;
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash;
+        }
+    }
+
+    private Future<Void> dropSegment(Segment segment) {
+        String path = manifest.pathOf(segment);
+        return manifest.remove(segment)
+                .compose(v -> fs.exists(path))
+                .compose(exists -> exists ? fs.delete(path) : Future.succeededFuture());
+    }
+
+    /**
+     * Schreibt die verbleibenden Zeilen gestreamt in eine temporäre Datei und ersetzt das Segment danach
+     */
+    private Future<Void> rewriteSegment(Segment segment, long from) {
+        String path = manifest.pathOf(segment);
+        String tmp = path + ".tmp";
+        return fs.exists(path)
+                .compose(exists -> {
+                    if (!exists) return Future.succeededFuture();
+                    return fs.open(tmp, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true))
+                            .compose(target -> fs.open(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false))
+                                    .compose(source -> {
+                                        Promise<Void> promise = Promise.promise();
+                                        RecordParser parser = lineParser(source, promise);
+                                        Buffer[] chunk = {Buffer.buffer(CHUNK_SIZE)};
+                                        target.exceptionHandler(promise::tryFail);
+                                        parser.handler(line -> {
+                                            byte[] bytes = line.getBytes();
+                                            if (parseNumber(bytes, 0, indexOf(bytes, SEPARATOR, 0, bytes.length)) < from) return;
+                                            chunk[0].appendBuffer(line).appendByte(NEWLINE);
+                                            if (chunk[0].length() >= CHUNK_SIZE) {
+                                                target.write(chunk[0]);
+                                                chunk[0] = Buffer.buffer(CHUNK_SIZE);
+                                                if (target.writeQueueFull()) {
+                                                    parser.pause();
+                                                    target.drainHandler(v -> parser.resume());
+                                                }
+                                            }
+                                        });
+                                        return promise.future()
+                                                .compose(v -> target.write(chunk[0]))
+                                                // erst auf dem Datenträger, dann umbenennen
+                                                .compose(v -> target.flush())
+                                                .eventually(source::close);
+                                    })
+                                    .eventually(target::close))
+                            .compose(v -> fs.move(tmp, path, new CopyOptions().setReplaceExisting(true).setAtomicMove(true)));
+                });
+    }
+
+    private static RecordParser lineParser(AsyncFile file, Promise<Void> done) {
+        file.setReadBufferSize(CHUNK_SIZE);
+        RecordParser parser = RecordParser.newDelimited(Buffer.buffer(new byte[]{NEWLINE}), file);
+        parser.exceptionHandler(done::tryFail);
+        parser.endHandler(v -> done.tryComplete());
+        return parser;
+    }
+
+    /**
+     * Kürzt das Segment bis hinter den letzten Zeilenumbruch, damit die nächste Zeile nicht an einer
+     * angefangenen hängt
+     */
+    private static void truncateTornLine(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long keep = 0;
+            ByteBuffer block = ByteBuffer.allocate(4096);
+            for (long end = size; end > 0 && keep == 0; end -= block.capacity()) {
+                long start = Math.max(0, end - block.capacity());
+                block.clear().limit((int) (end - start));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, start + block.position()) < 0) break;
+                }
+                for (int i = (int) (end - start) - 1; i >= 0; i--) {
+                    if (block.get(i) == NEWLINE) {
+                        keep = start + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (keep == size) return;
+            channel.truncate(keep);
+            channel.force(true);
+            Log.warn("Truncated torn line of {} bytes at the end of {}", size - keep, path);
+        } catch (NoSuchFileException e) {
+            // neues Segment
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == value) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Liest eine Zahl (Zeitstempel, Series-ID) direkt aus den Bytes [start, end), -1 bei ungültiger Zeile
+     */
+    private static long parseNumber(byte[] bytes, int start, int end) {
+        if (end <= start || end - start > MAX_DIGITS) return -1;
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            number = number * 10 + digit;
+        }
+        // 19 Stellen über Long.MAX_VALUE laufen ins Negative über
+        return number < 0 ? -1 : number;
+    }
+
+    private Future<Void> migrateLegacyFile() {
+        if (legacyFile == null) {
+            return Future.succeededFuture();
+        }
+        return fs.exists(legacyFile)
+                .compose(exists -> {
+                    if (!exists) return Future.succeededFuture();
+                    Log.info("Migrate {} into segments of {}", legacyFile, directory);
+                    return vertx.executeBlocking(() -> splitLegacyFile(Path.of(legacyFile)))
+                            .compose(lines -> {
+                                Log.info("Migrated {} rows from {}", lines, legacyFile);
+                                return manifest.rebuild();
+                            })
+                            .compose(v -> fs.move(legacyFile, legacyFile + ".migrated"));
+                });
+    }
+
+    /**
+     * Teilt die Altdatei zeilenweise auf, ohne sie komplett in den Speicher zu laden.
+     * Jeder Tag wird zuerst in "&lt;tag&gt;.csv.tmp" geschrieben und danach atomar an seinen Platz verschoben,
+     * ein nach einem Abbruch wiederholter Lauf ersetzt die Tage daher, statt die Zeilen erneut anzuhängen.
+     */
+    private long splitLegacyFile(Path legacy) throws IOException {
+        long lines = 0;
+        Segment current = null;
+        BufferedWriter writer = null;
+        // Tage dieses Laufs, Reihenfolge der Altdatei
+        Set<Path> days = new LinkedHashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacy, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(';');
+                if (separator <= 0) continue;
+                long ts;
+                try {
+                    ts = Long.parseLong(line, 0, separator, 10);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (current == null || !current.contains(ts)) {
+                    if (writer != null) writer.close();
+                    current = Segment.ofDay(ts, EXTENSION);
+                    Path day = Path.of(directory, current.name());
+                    // ein Rest aus einem abgebrochenen Lauf wird beim ersten Öffnen verworfen
+                    StandardOpenOption mode = days.add(day) ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+                    writer = Files.newBufferedWriter(tmpOf(day), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+                }
+                writer.write(line);
+                writer.write('\n');
+                lines++;
+            }
+        } finally {
+            if (writer != null) writer.close();
+        }
+        for (Path day : days) {
+            Path tmp = tmpOf(day);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, day, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return lines;
+    }
+
+    private static Path tmpOf(Path day) {
+        return day.resolveSibling(day.getFileName() + ".tmp");
+    }
+}
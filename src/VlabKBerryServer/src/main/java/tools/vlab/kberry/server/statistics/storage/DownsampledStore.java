@@ -0,0 +1,154 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Viertelstunden (count/sum/min/max) pro Series für Tage, deren Rohdaten abgelaufen sind.
+ * Je Tag eine Datei "yyyy-MM-dd.rollup" unter "quarter/" mit Zeilen "bucket;count;sum;min;max;pfad" (normalisiert),
+ * geschrieben wird ein Tag am Stück und atomar. Gelesen wird nur von der Platte, im Speicher liegt nichts.
+ */
+public class DownsampledStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(DownsampledStore.class);
+    public static final long QUARTER_MS = 15 * 60 * 1000L;
+    private static final String DIRECTORY = "quarter";
+    private static final String EXTENSION = ".rollup";
+
+    private final Vertx vertx;
+    private final String directory;
+    private final SegmentManifest manifest;
+    private final ScanExecutor scans;
+
+    /**
+     * @param directory Verzeichnis der Statistik, die Viertelstunden liegen darunter in "quarter/"
+     */
+    public DownsampledStore(Vertx vertx, String directory, ScanExecutor scans) {
+        this.vertx = vertx;
+        this.directory = Path.of(directory, DIRECTORY).toString();
+        this.manifest = new SegmentManifest(vertx, this.directory, EXTENSION, "segments.json");
+        this.scans = scans;
+    }
+
+    public Future<Void> start() {
+        return vertx.fileSystem().mkdirs(directory)
+                .compose(v -> manifest.load());
+    }
+
+    public static long bucketOf(long timestamp) {
+        return Math.floorDiv(timestamp, QUARTER_MS) * QUARTER_MS;
+    }
+
+    /**
+     * Beginn des ältesten verdichteten Tages, Long.MAX_VALUE ohne Viertelstunden
+     */
+    public long firstTimestamp() {
+        return manifest.firstTimestamp();
+    }
+
+    /**
+     * Ende des jüngsten verdichteten Tages, Long.MIN_VALUE ohne Viertelstunden
+     */
+    public long coveredUntil() {
+        return manifest.lastTimestamp();
+    }
+
+    /**
+     * Verdichtet einen Tag. Ein bereits verdichteter Tag wird ersetzt.
+     *
+     * @param day     Beginn des Tages
+     * @param readDay liest die Rohdaten des Tages in den Empfänger
+     * @return false, wenn der Tag keine Werte hatte und nichts geschrieben wurde
+     */
+    public Future<Boolean> compact(long day, Function<SampleConsumer, Future<Void>> readDay) {
+        NavigableMap<Long, Map<String, Rollup>> buckets = new TreeMap<>();
+        return readDay.apply((ts, path, value) -> buckets.computeIfAbsent(bucketOf(ts), b -> new HashMap<>())
+                        .computeIfAbsent(path, p -> new Rollup())
+                        .add(value))
+                .compose(v -> {
+                    if (buckets.isEmpty()) return Future.succeededFuture(false);
+                    Segment segment = Segment.ofDay(day, EXTENSION);
+                    return scans.execute(() -> {
+                                AtomicFile.replace(Path.of(manifest.pathOf(segment)), encode(buckets));
+                                return null;
+                            })
+                            .compose(written -> manifest.getOrCreate(day))
+                            .map(true);
+                });
+    }
+
+    /**
+     * Gibt die Viertelstunden, die in [from, to] beginnen, für die gewünschten Series aus.
+     * Gelesen wird auf dem Pool der Scans.
+     */
+    public Future<Void> scan(long from, long to, Set<String> positionPaths, RollupConsumer consumer) {
+        List<Segment> segments = manifest.overlapping(from, to);
+        if (segments.isEmpty() || positionPaths.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return scans.execute(() -> {
+            for (Segment segment : segments) {
+                read(Path.of(manifest.pathOf(segment)), from, to, positionPaths, consumer);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Entfernt alle Tage, die vollständig vor cutoff enden
+     *
+     * @return Anzahl entfernter Tage
+     */
+    public Future<Integer> expire(long cutoff) {
+        return manifest.dropBefore(cutoff);
+    }
+
+    private static ByteBuffer encode(NavigableMap<Long, Map<String, Rollup>> buckets) {
+        StringBuilder rows = new StringBuilder();
+        buckets.forEach((bucket, rollups) -> rollups.forEach((path, rollup) -> rows.append(bucket)
+                .append(';').append(rollup.count())
+                .append(';').append(rollup.sum())
+                .append(';').append(rollup.min())
+                .append(';').append(rollup.max())
+                .append(';').append(path)
+                .append('\n')));
+        return ByteBuffer.wrap(rows.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void read(Path file, long from, long to, Set<String> positionPaths, RollupConsumer consumer)
+            throws Exception {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";", 6);
+                if (parts.length != 6 || !positionPaths.contains(parts[5])) continue;
+                try {
+                    long bucket = Long.parseLong(parts[0]);
+                    if (bucket < from || bucket > to) continue;
+                    consumer.accept(bucket, parts[5], new Rollup(Long.parseLong(parts[1]),
+                            Double.parseDouble(parts[2]), Double.parseDouble(parts[3]), Double.parseDouble(parts[4])));
+                } catch (NumberFormatException e) {
+                    Log.warn("Skip invalid rollup row '{}' in {}", line, file);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // von expire gelöscht, während der Scan lief
+        }
+    }
+}
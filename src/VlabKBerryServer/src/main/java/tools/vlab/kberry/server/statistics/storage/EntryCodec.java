@@ -0,0 +1,15 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+/**
+ * Umwandlung eines Statistik-Eintrags in Text- bzw. Binärform
+ */
+public interface EntryCodec<T> {
+
+    String serialize(T value);
+
+    T deserialize(String raw);
+
+    String positionPath(T value);
+
+    double value(T value);
+}
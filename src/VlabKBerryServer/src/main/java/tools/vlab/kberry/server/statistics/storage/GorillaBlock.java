@@ -0,0 +1,197 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.Arrays;
+
+/**
+ * Komprimierter Block einer Series nach dem Gorilla-Verfahren:
+ * Zeitstempel als Delta der Deltas, Werte als XOR zum Vorgänger.
+ * Gleichmäßige Abstände kosten je Wert ein Bit für den Zeitstempel,
+ * unveränderte Werte ein weiteres Bit.
+ */
+public final class GorillaBlock {
+
+    private GorillaBlock() {
+    }
+
+    /**
+     * Kodiert die Werte [0, size), die Zeitstempel müssen aufsteigend sortiert sein
+     */
+    public static byte[] encode(long[] timestamps, double[] values, int size) {
+        BitWriter out = new BitWriter(Math.max(16, size * 2));
+        if (size == 0) return out.toByteArray();
+        out.write(timestamps[0], 64);
+        out.write(Double.doubleToRawLongBits(values[0]), 64);
+        long previousTimestamp = timestamps[0];
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        int leading = Integer.MAX_VALUE;
+        int trailing = 0;
+        for (int i = 1; i < size; i++) {
+            long delta = timestamps[i] - previousTimestamp;
+            writeDeltaOfDelta(out, delta - previousDelta);
+            previousTimestamp = timestamps[i];
+            previousDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            out.write(1, 1);
+            int newLeading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int newTrailing = Long.numberOfTrailingZeros(xor);
+            if (leading != Integer.MAX_VALUE && newLeading >= leading && newTrailing >= trailing) {
+                // passt in das Fenster des Vorgängers
+                out.write(0, 1);
+                out.write(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int meaningful = 64 - leading - trailing;
+                out.write(1, 1);
+                out.write(leading, 5);
+                out.write(meaningful - 1, 6);
+                out.write(xor >>> trailing, meaningful);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            out.write(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            out.write(0b10, 2);
+            out.write(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            out.write(0b110, 3);
+            out.write(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            out.write(0b1110, 4);
+            out.write(deltaOfDelta + 2047, 12);
+        } else {
+            out.write(0b1111, 4);
+            out.write(deltaOfDelta, 64);
+        }
+    }
+
+    /**
+     * Liest die Werte eines Blocks der Reihe nach
+     */
+    public static final class Decoder {
+
+        private final BitReader in;
+        private final int count;
+        private int read;
+        private long timestamp;
+        private long delta;
+        private long bits;
+        private int leading;
+        private int trailing;
+
+        public Decoder(byte[] block, int offset, int length, int count) {
+            this.in = new BitReader(block, offset, length);
+            this.count = count;
+        }
+
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        /**
+         * Geht zum nächsten Wert, danach gelten {@link #timestamp()} und {@link #value()}
+         */
+        public void next() {
+            if (read == 0) {
+                timestamp = in.read(64);
+                bits = in.read(64);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+                if (in.read(1) == 1) {
+                    if (in.read(1) == 1) {
+                        leading = (int) in.read(5);
+                        int meaningful = (int) in.read(6) + 1;
+                        trailing = 64 - leading - meaningful;
+                    }
+                    bits ^= in.read(64 - leading - trailing) << trailing;
+                }
+            }
+            read++;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        public double value() {
+            return Double.longBitsToDouble(bits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (in.read(1) == 0) return 0;
+            if (in.read(1) == 0) return in.read(7) - 63;
+            if (in.read(1) == 0) return in.read(9) - 255;
+            if (in.read(1) == 0) return in.read(12) - 2047;
+            return in.read(64);
+        }
+    }
+
+    private static final class BitWriter {
+
+        private byte[] bytes;
+        private long bitCount;
+
+        private BitWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        /**
+         * Schreibt die unteren length Bits von value, höchstwertiges zuerst
+         */
+        private void write(long value, int length) {
+            for (int bit = length - 1; bit >= 0; bit--) {
+                int index = (int) (bitCount >>> 3);
+                if (index == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                if (((value >>> bit) & 1) != 0) {
+                    bytes[index] |= (byte) (0x80 >>> (bitCount & 7));
+                }
+                bitCount++;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (int) ((bitCount + 7) >>> 3));
+        }
+    }
+
+    private static final class BitReader {
+
+        private final byte[] bytes;
+        private final long end;
+        private long position;
+
+        private BitReader(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = (long) offset << 3;
+            this.end = (long) (offset + length) << 3;
+        }
+
+        private long read(int length) {
+            if (position + length > end) {
+                throw new IllegalStateException("Gorilla block truncated");
+            }
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                int current = bytes[(int) (position >>> 3)] & 0xFF;
+                value = (value << 1) | ((current >>> (7 - (position & 7))) & 1);
+                position++;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Komprimierte Ablage: der laufende Tag wird wie bei {@link BinarySegmentStore} als Records fester Breite
+ * geschrieben, abgeschlossene Tage werden zu einem Gorilla-Block je Series verdichtet ({@link GorillaBlock}).
+ * <pre>
+ * int  magic "GOR1"
+ * long Größe und int CRC32 der zuletzt übernommenen Rohdaten
+ * int  Anzahl Blöcke
+ * je Block: int series id, int anzahl, long erster und letzter timestamp, int länge, byte[länge]
+ * </pre>
+ * Verdichtet wird beim Start und beim ersten Wert eines neuen Tags, über eine temporäre Datei und
+ * atomares Umbenennen. Nachzügler für verdichtete Tage landen wieder in Rohdaten und werden beim
+ * nächsten Mal dazugenommen. Abfragen lesen nur Blöcke, deren Series und Zeitraum passen.
+ */
+public class GorillaSegmentStore<T> implements StatisticStore<T> {
+
+    private static final Logger Log = LoggerFactory.getLogger(GorillaSegmentStore.class);
+    private static final String EXTENSION = ".gor";
+    private static final String MANIFEST = "segments.gor.json";
+    private static final int MAGIC = 0x474F5231;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int BLOCK_HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES * 2 + Integer.BYTES;
+
+    private final Vertx vertx;
+    private final String directory;
+    private final BinarySegmentStore<T> recent;
+    private final SeriesDictionary dictionary;
+    private final SegmentManifest compressed;
+    private final ScanExecutor scans;
+    // Abfragen lesen einen Tag unter der Lesesperre, das Verdichten tauscht Dateien unter der Schreibsperre
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Future<?> maintenance = Future.succeededFuture();
+    private volatile long compactedBefore = Long.MIN_VALUE;
+
+    public GorillaSegmentStore(Vertx vertx, String directory, String legacyFile, EntryCodec<T> codec,
+                               WritePolicy writePolicy, ScanExecutor scans) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.scans = scans;
+        this.recent = new BinarySegmentStore<>(vertx, directory, legacyFile, codec, writePolicy, scans);
+        this.dictionary = recent.dictionary();
+        this.compressed = new SegmentManifest(vertx, directory, EXTENSION, MANIFEST);
+    }
+
+    @Override
+    public Future<Void> start() {
+        return recent.start()
+                .compose(v -> compressed.load())
+                .compose(v -> compactClosedDays());
+    }
+
+    @Override
+    public Future<Void> append(long timestamp, T value) {
+        Future<Void> appended = recent.append(timestamp, value);
+        if (today() > compactedBefore) {
+            compactClosedDays()
+                    .onFailure(cause -> Log.error("Compaction of {} failed", directory, cause));
+        }
+        return appended;
+    }
+
+    /**
+     * Die Tage werden vorab aus beiden Manifesten bestimmt, Block und Rohdaten eines Tages aber erst unter
+     * der Lesesperre nachgeschlagen. Ein währenddessen verdichteter Tag wird so aus dem Block gelesen.
+     */
+    @Override
+    public Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        SortedSet<Long> days = new TreeSet<>();
+        compressed.overlapping(from, to).forEach(segment -> days.add(segment.from()));
+        recent.segments(from, to).forEach(segment -> days.add(segment.from()));
+        if (days.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        SeriesDictionary.Selection selection = dictionary.select(positionPaths);
+        // je Tag ein Teil, die Lesesperre hält der Thread, der den Tag liest
+        return scans.scan(List.copyOf(days), (day, samples) -> {
+            lock.readLock().lock();
+            try {
+                // der Block wird vor dem Tausch eingetragen, die Rohdaten erst danach ausgetragen
+                Segment block = compressed.segmentFor(day);
+                if (block != null) {
+                    scanCompressed(Path.of(compressed.pathOf(block)), from, to, selection, samples);
+                }
+                Segment raw = recent.segmentFor(day);
+                if (raw != null) {
+                    recent.scanSegment(raw, from, to, selection, samples);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }, consumer);
+    }
+
+    @Override
+    public Future<Void> clean(long from) {
+        return recent.clean(from)
+                .compose(v -> serial(() -> cleanCompressed(from)));
+    }
+
+    @Override
+    public long firstTimestamp() {
+        return Math.min(compressed.firstTimestamp(), recent.firstTimestamp());
+    }
+
+    @Override
+    public Future<Integer> expire(long cutoff) {
+        return recent.expire(cutoff)
+                .compose(raw -> serial(() -> compressed.dropBefore(cutoff).map(blocks -> raw + blocks)));
+    }
+
+    @Override
+    public Future<Void> stop() {
+        return serial(() -> Future.<Void>succeededFuture())
+                .compose(v -> recent.stop());
+    }
+
+    /**
+     * Verdichtet alle Rohdaten-Segmente vor dem laufenden Tag
+     */
+    private Future<Void> compactClosedDays() {
+        long today = today();
+        compactedBefore = today;
+        return serial(() -> {
+            Future<Void> result = Future.succeededFuture();
+            for (Segment raw : recent.segments()) {
+                if (raw.to() <= today) {
+                    result = result.compose(v -> compressed.getOrCreate(raw.from()))
+                            .compose(block -> recent.drain(raw,
+                                    rawPath -> compact(rawPath, Path.of(compressed.pathOf(block)))));
+                }
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Führt Verdichten und Aufräumen nacheinander aus
+     */
+    private synchronized <R> Future<R> serial(Supplier<Future<R>> operation) {
+        Future<R> result = maintenance.transform(ignore -> operation.get());
+        maintenance = result;
+        return result;
+    }
+
+    private static long today() {
+        return Math.floorDiv(Instant.now().toEpochMilli(), Segment.DAY_MS) * Segment.DAY_MS;
+    }
+
+    // ───────────────────────────────
+    // Verdichten
+    // ───────────────────────────────
+
+    private void compact(Path rawPath, Path blockPath) throws IOException {
+        if (!Files.exists(rawPath)) return;
+        byte[] raw = Files.readAllBytes(rawPath);
+        int rawSize = raw.length - raw.length % BinarySegmentStore.RECORD_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, rawSize);
+        Map<Integer, Samples> series = new TreeMap<>();
+        ByteBuffer existing = read(blockPath);
+        if (existing != null) {
+            boolean alreadyCompacted = existing.getLong(Integer.BYTES) == rawSize
+                    && existing.getInt(Integer.BYTES + Long.BYTES) == (int) crc.getValue();
+            if (alreadyCompacted) {
+                // Abbruch nach dem Umbenennen: die Rohdaten stecken schon in den Blöcken
+                Log.info("Remove already compacted raw segment {}", rawPath);
+                deleteUnderLock(rawPath);
+                return;
+            }
+            forEachBlock(existing, blockPath, (id, count, first, last, offset, length) -> {
+                Samples samples = series.computeIfAbsent(id, key -> new Samples());
+                GorillaBlock.Decoder decoder = new GorillaBlock.Decoder(existing.array(), offset, length, count);
+                while (decoder.hasNext()) {
+                    decoder.next();
+                    samples.add(decoder.timestamp(), decoder.value());
+                }
+            });
+        }
+        ByteBuffer records = ByteBuffer.wrap(raw, 0, rawSize);
+        for (int position = 0; position < rawSize; position += BinarySegmentStore.RECORD_SIZE) {
+            series.computeIfAbsent(records.getInt(position + Long.BYTES), key -> new Samples())
+                    .add(records.getLong(position), records.getDouble(position + Long.BYTES + Integer.BYTES));
+        }
+        replace(blockPath, encode(series, rawSize, (int) crc.getValue()), rawPath);
+    }
+
+    private static ByteBuffer encode(Map<Integer, Samples> series, long rawSize, int rawCrc) {
+        List<byte[]> blocks = new ArrayList<>();
+        int size = HEADER_SIZE;
+        for (Samples samples : series.values()) {
+            samples.sort();
+            byte[] block = GorillaBlock.encode(samples.timestamps, samples.values, samples.size);
+            blocks.add(block);
+            size += BLOCK_HEADER_SIZE + block.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size)
+                .putInt(MAGIC)
+                .putLong(rawSize)
+                .putInt(rawCrc)
+                .putInt(series.size());
+        int index = 0;
+        for (Map.Entry<Integer, Samples> entry : series.entrySet()) {
+            Samples samples = entry.getValue();
+            byte[] block = blocks.get(index++);
+            out.putInt(entry.getKey())
+                    .putInt(samples.size)
+                    .putLong(samples.timestamps[0])
+                    .putLong(samples.timestamps[samples.size - 1])
+                    .putInt(block.length)
+                    .put(block);
+        }
+        return out.flip();
+    }
+
+    /**
+     * Schreibt content in eine temporäre Datei und ersetzt target atomar. Danach wird obsolete entfernt.
+     */
+    private void replace(Path target, ByteBuffer content, Path obsolete) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        lock.writeLock().lock();
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (obsolete != null) {
+                Files.deleteIfExists(obsolete);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void deleteUnderLock(Path path) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Files.deleteIfExists(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Future<Void> cleanCompressed(long from) {
+        Future<Void> result = Future.succeededFuture();
+        for (Segment segment : compressed.all()) {
+            Path path = Path.of(compressed.pathOf(segment));
+            if (segment.endsBefore(from)) {
+                result = result.compose(v -> compressed.remove(segment))
+                        .compose(v -> vertx.executeBlocking(() -> {
+                            deleteUnderLock(path);
+                            return null;
+                        }));
+            } else if (segment.contains(from)) {
+                result = result.compose(v -> vertx.executeBlocking(() -> {
+                    rewriteFrom(path, from);
+                    return null;
+                }));
+            }
+        }
+        return result;
+    }
+
+    private void rewriteFrom(Path path, long from) throws IOException {
+        ByteBuffer existing = read(path);
+        if (existing == null) return;
+        Map<Integer, Samples> series = new TreeMap<>();
+        forEachBlock(existing, path, (id, count, first, last, offset, length) -> {
+            GorillaBlock.Decoder decoder = new GorillaBlock.Decoder(existing.array(), offset, length, count);
+            while (decoder.hasNext()) {
+                decoder.next();
+                if (decoder.timestamp() >= from) {
+                    series.computeIfAbsent(id, key -> new Samples()).add(decoder.timestamp(), decoder.value());
+                }
+            }
+        });
+        // die Kennung der Rohdaten bleibt erhalten
+        replace(path, encode(series, existing.getLong(Integer.BYTES), existing.getInt(Integer.BYTES + Long.BYTES)), null);
+    }
+
+    // ───────────────────────────────
+    // Lesen
+    // ───────────────────────────────
+
+    private void scanCompressed(Path path, long from, long to, SeriesDictionary.Selection selection,
+                                SampleConsumer consumer) throws IOException {
+        ByteBuffer content = read(path);
+        if (content == null) return;
+        forEachBlock(content, path, (id, count, first, last, offset, length) -> {
+            if (last < from || first > to || !selection.contains(id)) return;
+            String positionPath = dictionary.pathOf(id);
+            GorillaBlock.Decoder decoder = new GorillaBlock.Decoder(content.array(), offset, length, count);
+            while (decoder.hasNext()) {
+                decoder.next();
+                long ts = decoder.timestamp();
+                if (ts > to) break;
+                if (ts >= from) {
+                    consumer.accept(ts, positionPath, decoder.value());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Inhalt der Datei, null wenn sie fehlt oder kein gültiger Kopf vorliegt
+     */
+    private static ByteBuffer read(Path path) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            Log.warn("Ignore invalid compressed segment {}", path);
+            return null;
+        }
+        return buffer;
+    }
+
+    @FunctionalInterface
+    private interface BlockVisitor {
+        void visit(int series, int count, long first, long last, int offset, int length);
+    }
+
+    private static void forEachBlock(ByteBuffer content, Path path, BlockVisitor visitor) {
+        int blocks = content.getInt(HEADER_SIZE - Integer.BYTES);
+        int position = HEADER_SIZE;
+        for (int i = 0; i < blocks; i++) {
+            if (position + BLOCK_HEADER_SIZE > content.limit()) {
+                Log.warn("Compressed segment {} is truncated after {} blocks", path, i);
+                return;
+            }
+            int series = content.getInt(position);
+            int count = content.getInt(position + Integer.BYTES);
+            long first = content.getLong(position + Integer.BYTES * 2);
+            long last = content.getLong(position + Integer.BYTES * 2 + Long.BYTES);
+            int length = content.getInt(position + Integer.BYTES * 2 + Long.BYTES * 2);
+            int offset = position + BLOCK_HEADER_SIZE;
+            if (offset + length > content.limit()) {
+                Log.warn("Compressed segment {} is truncated after {} blocks", path, i);
+                return;
+            }
+            visitor.visit(series, count, first, last, offset, length);
+            position = offset + length;
+        }
+    }
+
+    /**
+     * Werte einer Series vor dem Kodieren
+     */
+    private static final class Samples {
+
+        private long[] timestamps = new long[64];
+        private double[] values = new double[64];
+        private int size;
+
+        private void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Stabil nach Zeitstempel, meist liegen die Werte schon sortiert vor
+         */
+        private void sort() {
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = timestamps[i - 1] <= timestamps[i];
+            }
+            if (sorted) return;
+            Integer[] order = IntStream.range(0, size).boxed().toArray(Integer[]::new);
+            Arrays.sort(order, Comparator.comparingLong(i -> timestamps[i]));
+            long[] sortedTimestamps = new long[size];
+            double[] sortedValues = new double[size];
+            for (int i = 0; i < size; i++) {
+                sortedTimestamps[i] = timestamps[order[i]];
+                sortedValues[i] = values[order[i]];
+            }
+            timestamps = sortedTimestamps;
+            values = sortedValues;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.Arrays;
+
+/**
+ * Verteilung von Werten in festen Klassen der Breite resolution, gewichtet nach Dauer (ms).
+ * Es werden nur belegte Klassen gehalten. Histogramme gleicher Auflösung lassen sich ohne
+ * Genauigkeitsverlust zusammenführen, Perzentile sind auf resolution genau, Minimum und Maximum exakt.
+ */
+public final class Histogram {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final double resolution;
+    // Klassen aufsteigend sortiert, Klasse i umfasst [i * resolution, (i + 1) * resolution)
+    private int[] classes = new int[INITIAL_CAPACITY];
+    private long[] weights = new long[INITIAL_CAPACITY];
+    private int size;
+    private long total;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public Histogram(double resolution) {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("resolution must be positive: " + resolution);
+        }
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param weight Dauer in ms, die der Wert galt
+     */
+    public void add(double value, long weight) {
+        if (weight <= 0 || Double.isNaN(value)) return;
+        addClass(classOf(value), weight);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public Histogram merge(Histogram other) {
+        if (other.resolution != resolution) {
+            throw new IllegalArgumentException("Cannot merge histograms of resolution " + other.resolution + " into " + resolution);
+        }
+        for (int i = 0; i < other.size; i++) {
+            addClass(other.classes[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    public double resolution() {
+        return resolution;
+    }
+
+    /**
+     * Summe aller Gewichte in ms
+     */
+    public long totalWeight() {
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return total == 0;
+    }
+
+    public double min() {
+        return isEmpty() ? Double.NaN : min;
+    }
+
+    public double max() {
+        return isEmpty() ? Double.NaN : max;
+    }
+
+    /**
+     * Wert, unter dem der Anteil quantile der Zeit lag, z.B. 0.95 für p95.
+     * Liefert die Mitte der Klasse, begrenzt auf Minimum und Maximum.
+     */
+    public double quantile(double quantile) {
+        if (isEmpty()) return Double.NaN;
+        if (quantile <= 0) return min;
+        if (quantile >= 1) return max;
+        double target = quantile * total;
+        long cumulative = 0;
+        for (int i = 0; i < size; i++) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                double center = (classes[i] + 0.5) * resolution;
+                return Math.max(min, Math.min(max, center));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Dauer in ms mit Werten ab threshold, auf resolution genau
+     */
+    public long weightAtLeast(double threshold) {
+        int first = (int) Math.ceil(threshold / resolution - 1e-9);
+        long weight = 0;
+        for (int i = size - 1; i >= 0 && classes[i] >= first; i--) {
+            weight += weights[i];
+        }
+        return weight;
+    }
+
+    public double minutesAtLeast(double threshold) {
+        return weightAtLeast(threshold) / 60_000.0;
+    }
+
+    /**
+     * "klasse:gewicht,..." für die Ablage
+     */
+    String classesToString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) out.append(',');
+            out.append(classes[i]).append(':').append(weights[i]);
+        }
+        return out.toString();
+    }
+
+    static Histogram parse(double resolution, double min, double max, String classes) {
+        Histogram histogram = new Histogram(resolution);
+        if (!classes.isEmpty()) {
+            for (String entry : classes.split(",")) {
+                int separator = entry.indexOf(':');
+                histogram.addClass(Integer.parseInt(entry, 0, separator, 10), Long.parseLong(entry.substring(separator + 1)));
+            }
+        }
+        if (!histogram.isEmpty()) {
+            histogram.min = min;
+            histogram.max = max;
+        }
+        return histogram;
+    }
+
+    private int classOf(double value) {
+        return (int) Math.floor(value / resolution);
+    }
+
+    private void addClass(int index, long weight) {
+        int position = Arrays.binarySearch(classes, 0, size, index);
+        if (position < 0) {
+            position = -position - 1;
+            if (size == classes.length) {
+                classes = Arrays.copyOf(classes, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            System.arraycopy(classes, position, classes, position + 1, size - position);
+            System.arraycopy(weights, position, weights, position + 1, size - position);
+            classes[position] = index;
+            weights[position] = 0;
+            size++;
+        }
+        weights[position] += weight;
+        total += weight;
+    }
+}
@@ -0,0 +1,385 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Schreibt neue Werte zuerst in ein Journal ("journal.N.wal") und überträgt sie in regelmäßigen
+ * Abständen gesammelt in die eigentliche Ablage. Journal und Übertragung werden synchronisiert,
+ * das Journal wird erst danach gelöscht.
+ * Jeder Eintrag trägt Länge und CRC32 ("länge;crc;timestamp;eintrag"), ein beim Stromausfall
+ * abgeschnittener Eintrag beendet das Lesen seines Journals.
+ * Beim Start werden vorhandene Journale nachgespielt. Werte, die bereits in der Ablage stehen
+ * (Abbruch zwischen Übertragung und Löschen), werden anhand von Zeitstempel und Pfad übersprungen.
+ */
+public class JournaledStore<T> implements StatisticStore<T> {
+
+    private static final Logger Log = LoggerFactory.getLogger(JournaledStore.class);
+    private static final String PREFIX = "journal.";
+    static final String EXTENSION = ".wal";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    // so viele Werte werden höchstens im Speicher gehalten, bevor vorzeitig übertragen wird
+    private static final int MAX_PENDING = 10_000;
+    private static final long RETRY_MS = 50;
+
+    private record Entry<T>(long timestamp, T value) {
+    }
+
+    private record Journal<T>(List<Path> files, List<Entry<T>> entries, long lastSequence, int skipped) {
+    }
+
+    private final Vertx vertx;
+    private final String directory;
+    private final StatisticStore<T> store;
+    private final EntryCodec<T> codec;
+    private final SegmentWriter writer;
+    private final long compactIntervalMs;
+
+    private List<Entry<T>> pending = new ArrayList<>();
+    // Journale, deren Werte bereits in pending stehen und nach der nächsten Übertragung gelöscht werden
+    private final List<String> sealed = new ArrayList<>();
+    private String current;
+    private long sequence;
+    private Future<Void> lastWrite = Future.succeededFuture();
+    private Future<Void> compaction = Future.succeededFuture();
+    private boolean compacting = false;
+    private int activeScans = 0;
+    // eine geplante Übertragung, solange Scans laufen, null ohne
+    private Promise<Void> retry = null;
+    private Long timerId = null;
+
+    /**
+     * @param store             eigentliche Ablage, sollte mit fsync schreiben ({@link WritePolicy#fsync()})
+     * @param writePolicy       für das Journal, es wird immer synchronisiert
+     * @param compactIntervalMs Abstand der Übertragungen in die Ablage
+     */
+    public JournaledStore(Vertx vertx, String directory, StatisticStore<T> store, EntryCodec<T> codec,
+                          WritePolicy writePolicy, long compactIntervalMs) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.store = store;
+        this.codec = codec;
+        this.writer = new SegmentWriter(vertx, new WritePolicy(writePolicy.commitDelayMs(), true));
+        this.compactIntervalMs = compactIntervalMs;
+    }
+
+    @Override
+    public Future<Void> start() {
+        return store.start()
+                .compose(v -> recover())
+                .onSuccess(v -> timerId = vertx.setPeriodic(compactIntervalMs, id -> compact()
+                        .onFailure(cause -> Log.error("Compact journal of {} failed", directory, cause))));
+    }
+
+    @Override
+    public Future<Void> append(long timestamp, T value) {
+        byte[] row = (timestamp + ";" + codec.serialize(value)).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(row);
+        Buffer record = Buffer.buffer(HEADER_SIZE + row.length)
+                .appendInt(row.length)
+                .appendInt((int) crc.getValue())
+                .appendBytes(row);
+        Future<Void> written;
+        boolean full;
+        synchronized (this) {
+            pending.add(new Entry<>(timestamp, value));
+            written = writer.append(current, record);
+            lastWrite = written;
+            full = pending.size() >= MAX_PENDING;
+        }
+        if (full) {
+            compact().onFailure(cause -> Log.error("Compact journal of {} failed", directory, cause));
+        }
+        return written;
+    }
+
+    /**
+     * Liest die Ablage und danach die noch nicht übertragenen Werte.
+     * Eine laufende Übertragung wird abgewartet, damit kein Wert doppelt oder gar nicht erscheint.
+     */
+    @Override
+    public Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer) {
+        return beginScan()
+                .compose(snapshot -> store.scan(from, to, positionPaths, consumer)
+                        .map(v -> {
+                            for (Entry<T> entry : snapshot) {
+                                if (entry.timestamp() < from || entry.timestamp() > to) continue;
+                                String positionPath = SeriesDictionary.normalize(codec.positionPath(entry.value()));
+                                if (positionPaths.test(positionPath)) {
+                                    consumer.accept(entry.timestamp(), positionPath, codec.value(entry.value()));
+                                }
+                            }
+                            return (Void) null;
+                        })
+                        .eventually(() -> {
+                            endScan();
+                            return Future.succeededFuture();
+                        }));
+    }
+
+    /**
+     * Überträgt zuerst das Journal, damit auch dessen Werte entfernt werden
+     */
+    @Override
+    public Future<Void> clean(long from) {
+        return compact().compose(v -> store.clean(from));
+    }
+
+    /**
+     * Berücksichtigt auch die noch nicht übertragenen Werte
+     */
+    @Override
+    public long firstTimestamp() {
+        long first = store.firstTimestamp();
+        synchronized (this) {
+            for (Entry<T> entry : pending) {
+                first = Math.min(first, entry.timestamp());
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public Future<Integer> expire(long cutoff) {
+        return store.expire(cutoff);
+    }
+
+    @Override
+    public Future<Void> stop() {
+        if (timerId != null) {
+            vertx.cancelTimer(timerId);
+            timerId = null;
+        }
+        return compact()
+                .eventually(writer::close)
+                .compose(v -> store.stop());
+    }
+
+    /**
+     * Überträgt alle bisher journalisierten Werte in die Ablage und löscht danach deren Journale.
+     * Neue Werte gehen währenddessen in ein neues Journal.
+     */
+    public Future<Void> compact() {
+        List<Entry<T>> batch;
+        List<String> journals;
+        Future<Void> written;
+        Promise<Void> done = Promise.promise();
+        synchronized (this) {
+            if (compacting) return compaction;
+            if (pending.isEmpty()) return Future.succeededFuture();
+            if (activeScans > 0) {
+                if (retry == null) {
+                    Promise<Void> scheduled = Promise.promise();
+                    retry = scheduled;
+                    vertx.setTimer(RETRY_MS, id -> {
+                        synchronized (this) {
+                            retry = null;
+                        }
+                        compact().onComplete(scheduled);
+                    });
+                }
+                return retry.future();
+            }
+            compacting = true;
+            compaction = done.future();
+            batch = pending;
+            pending = new ArrayList<>();
+            sealed.add(current);
+            journals = List.copyOf(sealed);
+            current = journalPath(++sequence);
+            written = lastWrite;
+        }
+        List<Entry<T>> failed = new ArrayList<>();
+        written.transform(ignore -> appendAll(batch, failed))
+                .compose(v -> writer.exclusive(() -> delete(journals)))
+                .onComplete(result -> {
+                    synchronized (this) {
+                        if (result.succeeded()) {
+                            sealed.removeAll(journals);
+                        } else if (!failed.isEmpty()) {
+                            // nur die nicht übertragenen Werte, sie bleiben im Journal und werden beim nächsten Mal
+                            // erneut übertragen. Scheitert nur das Löschen, bleiben die Journale in sealed.
+                            failed.addAll(pending);
+                            pending = failed;
+                        }
+                        compacting = false;
+                    }
+                    done.handle(result);
+                });
+        return done.future();
+    }
+
+    private synchronized Future<List<Entry<T>>> beginScan() {
+        if (compacting) {
+            return compaction.transform(ignore -> beginScan());
+        }
+        activeScans++;
+        return Future.succeededFuture(List.copyOf(pending));
+    }
+
+    private synchronized void endScan() {
+        activeScans--;
+    }
+
+    /**
+     * Wartet auf alle Werte, auch wenn einzelne scheitern
+     *
+     * @param failed erhält die nicht übertragenen Werte
+     */
+    private Future<Void> appendAll(List<Entry<T>> entries, List<Entry<T>> failed) {
+        List<Future<Void>> appends = new ArrayList<>(entries.size());
+        for (Entry<T> entry : entries) {
+            appends.add(store.append(entry.timestamp(), entry.value()));
+        }
+        return Future.join(appends)
+                .recover(cause -> {
+                    for (int i = 0; i < appends.size(); i++) {
+                        if (appends.get(i).failed()) {
+                            failed.add(entries.get(i));
+                        }
+                    }
+                    return Future.failedFuture(cause);
+                })
+                .mapEmpty();
+    }
+
+    private Future<Void> delete(List<String> journals) {
+        return vertx.<Void>executeBlocking(() -> {
+            for (String journal : journals) {
+                Files.deleteIfExists(Path.of(journal));
+            }
+            return null;
+        });
+    }
+
+    private String journalPath(long sequence) {
+        return Path.of(directory, PREFIX + sequence + EXTENSION).toString();
+    }
+
+    // ───────────────────────────────
+    // Wiederherstellung
+    // ───────────────────────────────
+
+    private Future<Void> recover() {
+        long started = System.nanoTime();
+        return vertx.executeBlocking(this::readJournals)
+                .compose(journal -> {
+                    synchronized (this) {
+                        sequence = journal.lastSequence() + 1;
+                        current = journalPath(sequence);
+                    }
+                    if (journal.files().isEmpty()) return Future.succeededFuture();
+                    return withoutStored(journal.entries())
+                            .compose(fresh -> appendAll(fresh, new ArrayList<>())
+                                    .compose(v -> vertx.<Void>executeBlocking(() -> {
+                                        for (Path file : journal.files()) {
+                                            Files.deleteIfExists(file);
+                                        }
+                                        return null;
+                                    }))
+                                    .onSuccess(v -> Log.info("Recovered {} of {} journal entries in {} ({} corrupt) in {} ms",
+                                            fresh.size(), journal.entries().size(), directory, journal.skipped(),
+                                            (System.nanoTime() - started) / 1_000_000)));
+                });
+    }
+
+    /**
+     * Entfernt Werte, die bereits in der Ablage stehen
+     */
+    private Future<List<Entry<T>>> withoutStored(List<Entry<T>> entries) {
+        if (entries.isEmpty()) return Future.succeededFuture(entries);
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        for (Entry<T> entry : entries) {
+            from = Math.min(from, entry.timestamp());
+            to = Math.max(to, entry.timestamp());
+        }
+        Set<String> stored = new HashSet<>();
+        return store.scan(from, to, (ts, path, value) -> stored.add(ts + ";" + path))
+                .map(v -> entries.stream()
+                        .filter(entry -> !stored.contains(entry.timestamp() + ";"
+                                + SeriesDictionary.normalize(codec.positionPath(entry.value()))))
+                        .toList());
+    }
+
+    private Journal<T> readJournals() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        Path dir = Path.of(directory);
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> listing = Files.list(dir)) {
+                listing.forEach(file -> {
+                    String name = file.getFileName().toString();
+                    if (!name.startsWith(PREFIX) || !name.endsWith(EXTENSION)) return;
+                    try {
+                        files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - EXTENSION.length())), file);
+                    } catch (NumberFormatException e) {
+                        Log.warn("Ignore unexpected journal file {}", file);
+                    }
+                });
+            }
+        }
+        List<Entry<T>> entries = new ArrayList<>();
+        int skipped = 0;
+        for (Path file : files.values()) {
+            skipped += readJournal(file, entries);
+        }
+        return new Journal<>(List.copyOf(files.values()), entries, files.isEmpty() ? 0 : files.lastKey(), skipped);
+    }
+
+    /**
+     * @return Anzahl unlesbarer Einträge
+     */
+    private int readJournal(Path file, List<Entry<T>> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int skipped = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                Log.warn("Journal {} ends with a truncated entry, {} bytes dropped", file, buffer.remaining() + HEADER_SIZE);
+                return skipped + 1;
+            }
+            byte[] row = new byte[length];
+            buffer.get(row);
+            CRC32 crc = new CRC32();
+            crc.update(row);
+            if ((int) crc.getValue() != checksum) {
+                // Länge nicht vertrauenswürdig, der Rest des Journals ist nicht mehr zuzuordnen
+                Log.warn("Journal {} has a corrupt entry, {} bytes dropped", file, buffer.remaining() + length + HEADER_SIZE);
+                return skipped + 1;
+            }
+            String text = new String(row, StandardCharsets.UTF_8);
+            int separator = text.indexOf(';');
+            try {
+                entries.add(new Entry<>(Long.parseLong(text, 0, separator, 10), codec.deserialize(text.substring(separator + 1))));
+            } catch (RuntimeException e) {
+                Log.warn("Skip invalid journal entry '{}' in {}", text, file);
+                skipped++;
+            }
+        }
+        if (buffer.hasRemaining()) {
+            Log.warn("Journal {} ends with a truncated header, {} bytes dropped", file, buffer.remaining());
+            skipped++;
+        }
+        return skipped;
+    }
+}
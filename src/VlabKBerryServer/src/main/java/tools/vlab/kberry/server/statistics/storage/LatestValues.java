@@ -0,0 +1,39 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Letzter Wert je Series, für "aktuelle" Abfragen ohne Dateizugriff.
+ * Pfade werden normalisiert verglichen, siehe {@link SeriesDictionary#normalize(String)}.
+ */
+public class LatestValues {
+
+    public record Latest(long timestamp, double value) {
+    }
+
+    private final Map<String, Latest> values = new ConcurrentHashMap<>();
+
+    /**
+     * Übernimmt den Wert, sofern er nicht älter als der bekannte ist
+     */
+    public void update(long timestamp, String positionPath, double value) {
+        values.merge(key(positionPath), new Latest(timestamp, value),
+                (known, candidate) -> candidate.timestamp() >= known.timestamp() ? candidate : known);
+    }
+
+    /**
+     * @return letzter Wert oder null, wenn für den Pfad noch nichts bekannt ist
+     */
+    public Latest get(String positionPath) {
+        return values.get(key(positionPath));
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private static String key(String positionPath) {
+        return SeriesDictionary.normalize(positionPath);
+    }
+}
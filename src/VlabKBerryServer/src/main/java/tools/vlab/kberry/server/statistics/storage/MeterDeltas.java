@@ -0,0 +1,65 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wandelt Zählerstände (kWh) je Series in Verbrauch seit der letzten Ablesung um.
+ * Ein fallender Zählerstand gilt als Überlauf, wenn ein Überlaufwert bekannt ist und der
+ * letzte Stand in dessen oberem Zehntel lag, sonst als Zurücksetzen auf 0.
+ */
+public class MeterDeltas {
+
+    private record Reading(long timestamp, double meter) {
+    }
+
+    private final double rollover;
+    private final Map<String, Reading> last = new HashMap<>();
+
+    /**
+     * @param rollover Zählerstand, bei dem der Zähler wieder bei 0 beginnt, 0 = unbekannt
+     */
+    public MeterDeltas(double rollover) {
+        if (rollover < 0) {
+            throw new IllegalArgumentException("rollover must not be negative: " + rollover);
+        }
+        this.rollover = rollover;
+    }
+
+    /**
+     * Übernimmt einen Zählerstand ohne Verbrauch zu berechnen, z.B. beim Start aus den Rohdaten
+     */
+    public synchronized void seed(long timestamp, String positionPath, double meter) {
+        Reading known = last.get(positionPath);
+        if (known == null || timestamp >= known.timestamp()) {
+            last.put(positionPath, new Reading(timestamp, meter));
+        }
+    }
+
+    /**
+     * @return Verbrauch seit der letzten Ablesung, NaN bei der ersten Ablesung,
+     * ungültigen oder älteren Werten
+     */
+    public synchronized double delta(long timestamp, String positionPath, double meter) {
+        if (Double.isNaN(meter) || Double.isInfinite(meter)) {
+            return Double.NaN;
+        }
+        Reading known = last.get(positionPath);
+        if (known != null && timestamp < known.timestamp()) {
+            return Double.NaN;
+        }
+        last.put(positionPath, new Reading(timestamp, meter));
+        if (known == null) {
+            return Double.NaN;
+        }
+        double delta = meter - known.meter();
+        if (delta >= 0) {
+            return delta;
+        }
+        if (rollover > 0 && known.meter() >= rollover * 0.9 && known.meter() <= rollover) {
+            return rollover - known.meter() + meter;
+        }
+        // Zähler wurde zurückgesetzt: der aktuelle Stand ist der Verbrauch seitdem
+        return Math.max(meter, 0);
+    }
+}
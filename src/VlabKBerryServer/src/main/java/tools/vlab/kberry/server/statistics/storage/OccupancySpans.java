@@ -0,0 +1,299 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Belegung je Präsenzmelder als Zeitspannen [start, end) statt einzelner Minutenwerte.
+ * Abgeschlossene Spannen werden als "start;end;pfad" angehängt, regelmäßig und beim Stoppen folgen die
+ * offenen Spannen ("start;;pfad") und ein Sicherungspunkt ("#;timestamp").
+ * Nach dem Start werden nur die Rohdaten ab dem letzten Sicherungspunkt nachgespielt,
+ * ohne Sicherungspunkt alle.
+ */
+public class OccupancySpans {
+
+    private static final Logger Log = LoggerFactory.getLogger(OccupancySpans.class);
+    private static final String FILE = "occupancy.spans";
+    private static final String CHECKPOINT = "#";
+    /**
+     * Fehlen Werte länger als diese Zeit, endet eine offene Spanne mit dem letzten Wert
+     */
+    public static final long DEFAULT_MAX_GAP_MS = 5 * 60 * 1000L;
+    /**
+     * Abstand der Sicherungspunkte im Betrieb, nach einem Absturz wird höchstens so viel nachgespielt
+     */
+    public static final long CHECKPOINT_INTERVAL_MS = 5 * 60 * 1000L;
+
+    private static class Sensor {
+        private final NavigableMap<Long, Long> spans = new TreeMap<>();
+        private long firstSeen = Long.MAX_VALUE;
+        private long lastSample = Long.MIN_VALUE;
+        private long openSince = -1;
+        private long lastPresent = -1;
+        // Spannen bis hier sind bereits geschrieben
+        private long persistedEnd = Long.MIN_VALUE;
+    }
+
+    private final Vertx vertx;
+    private final String file;
+    private final SegmentWriter writer;
+    private final Map<String, Sensor> sensors = new HashMap<>();
+    private final SeriesIndex index = new SeriesIndex();
+    private final long maxGapMs;
+    // seit dem letzten Sicherungspunkt kamen Werte hinzu
+    private boolean dirty = false;
+    private Long timerId = null;
+
+    public OccupancySpans(Vertx vertx, String directory, WritePolicy writePolicy) {
+        this(vertx, directory, writePolicy, DEFAULT_MAX_GAP_MS);
+    }
+
+    /**
+     * @param maxGapMs längster erwarteter Abstand zweier Werte eines Melders
+     */
+    public OccupancySpans(Vertx vertx, String directory, WritePolicy writePolicy, long maxGapMs) {
+        this.vertx = vertx;
+        this.maxGapMs = maxGapMs;
+        this.file = Path.of(directory, FILE).toString();
+        this.writer = new SegmentWriter(vertx, writePolicy);
+    }
+
+    /**
+     * Lädt die geschriebenen Spannen und die offenen Spannen des letzten Sicherungspunkts.
+     *
+     * @return Zeitpunkt, ab dem die Rohdaten nachgespielt werden müssen ({@link #replay})
+     */
+    public Future<Long> load() {
+        return vertx.executeBlocking(() -> {
+            synchronized (this) {
+                sensors.clear();
+                index.clear();
+                long checkpoint = read();
+                if (checkpoint == 0) {
+                    Log.info("No occupancy checkpoint in {}, rebuild from raw data", file);
+                }
+                dirty = false;
+                return checkpoint;
+            }
+        });
+    }
+
+    /**
+     * Schreibt ab jetzt alle {@link #CHECKPOINT_INTERVAL_MS} einen Sicherungspunkt.
+     * Erst nach dem Nachspielen aufrufen, sonst fehlen nach einem Absturz Rohdaten.
+     */
+    public synchronized void startCheckpoints() {
+        if (timerId == null) {
+            timerId = vertx.setPeriodic(CHECKPOINT_INTERVAL_MS, id -> checkpoint());
+        }
+    }
+
+    public synchronized void add(long timestamp, String positionPath, boolean present) {
+        add(timestamp, positionPath, present, false);
+    }
+
+    /**
+     * Spielt einen Rohwert nach dem Start ein, bereits geschriebene Spannen werden nicht erneut geschrieben
+     */
+    public synchronized void replay(long timestamp, String positionPath, boolean present) {
+        add(timestamp, positionPath, present, true);
+    }
+
+    /**
+     * Zeitpunkt der letzten Anwesenheit aller passenden Melder, -1 wenn nie anwesend
+     */
+    public synchronized long lastSeen(Predicate<String> positionPaths) {
+        long last = -1;
+        for (String positionPath : index.resolve(positionPaths)) {
+            Sensor sensor = sensors.get(positionPath);
+            long seen = sensor.openSince >= 0 ? sensor.lastPresent : lastEnd(sensor);
+            last = Math.max(last, seen);
+        }
+        return last;
+    }
+
+    /**
+     * Anteil der belegten Zeit in [from, to] über alle passenden Melder, jeweils ab deren erster Beobachtung.
+     *
+     * @return 0..1, NaN wenn kein passender Melder im Zeitraum beobachtet wurde
+     */
+    public synchronized double usage(long from, long to, long now, Predicate<String> positionPaths) {
+        long occupied = 0;
+        long observed = 0;
+        long end = Math.min(to, now);
+        for (String positionPath : index.resolve(positionPaths)) {
+            Sensor sensor = sensors.get(positionPath);
+            long start = Math.max(from, sensor.firstSeen);
+            if (start >= end) continue;
+            observed += end - start;
+            Long first = sensor.spans.floorKey(start);
+            for (Map.Entry<Long, Long> span : sensor.spans.tailMap(first != null ? first : start, true).entrySet()) {
+                if (span.getKey() >= end) break;
+                occupied += overlap(span.getKey(), span.getValue(), start, end);
+            }
+            if (sensor.openSince >= 0) {
+                occupied += overlap(sensor.openSince, Math.min(now, sensor.lastSample + maxGapMs), start, end);
+            }
+        }
+        return observed == 0 ? Double.NaN : (double) occupied / observed;
+    }
+
+    /**
+     * Schreibt die offenen Spannen und einen Sicherungspunkt
+     */
+    public synchronized Future<Void> stop() {
+        if (timerId != null) {
+            vertx.cancelTimer(timerId);
+            timerId = null;
+        }
+        checkpoint();
+        return writer.close();
+    }
+
+    /**
+     * Hängt die offenen Spannen und einen Sicherungspunkt an, wenn seit dem letzten Werte hinzukamen
+     */
+    private synchronized void checkpoint() {
+        if (!dirty) return;
+        dirty = false;
+        StringBuilder rows = new StringBuilder();
+        long checkpoint = Long.MIN_VALUE;
+        for (Map.Entry<String, Sensor> entry : sensors.entrySet()) {
+            Sensor sensor = entry.getValue();
+            checkpoint = Math.max(checkpoint, sensor.lastSample);
+            if (sensor.openSince >= 0) {
+                rows.append(sensor.openSince).append(";;").append(entry.getKey()).append('\n');
+            }
+        }
+        if (checkpoint != Long.MIN_VALUE) {
+            rows.append(CHECKPOINT).append(';').append(checkpoint + 1).append('\n');
+            writer.append(file, Buffer.buffer(rows.toString()))
+                    .onFailure(cause -> Log.error("Write occupancy checkpoint to {} failed", file, cause));
+        }
+    }
+
+    private Sensor sensorOf(String positionPath) {
+        Sensor sensor = sensors.get(positionPath);
+        if (sensor == null) {
+            sensor = new Sensor();
+            sensors.put(positionPath, sensor);
+            index.add(positionPath);
+        }
+        return sensor;
+    }
+
+    private void add(long timestamp, String positionPath, boolean present, boolean replay) {
+        Sensor sensor = sensorOf(positionPath);
+        if (timestamp < sensor.lastSample) return;
+        dirty = true;
+        if (sensor.firstSeen == Long.MAX_VALUE) {
+            // leere Spanne als Beginn der Beobachtung
+            sensor.firstSeen = timestamp;
+            write(timestamp, timestamp, positionPath);
+        }
+        if (sensor.openSince >= 0 && timestamp - sensor.lastSample > maxGapMs) {
+            close(sensor, positionPath, sensor.lastSample, replay);
+        }
+        if (present) {
+            if (sensor.openSince < 0) {
+                sensor.openSince = timestamp;
+            }
+            sensor.lastPresent = timestamp;
+        } else if (sensor.openSince >= 0) {
+            close(sensor, positionPath, timestamp, replay);
+        }
+        sensor.lastSample = timestamp;
+    }
+
+    private void close(Sensor sensor, String positionPath, long end, boolean replay) {
+        long start = sensor.openSince;
+        sensor.openSince = -1;
+        if (end <= start) return;
+        if (replay && end <= sensor.persistedEnd) return;
+        sensor.spans.put(start, end);
+        sensor.persistedEnd = end;
+        write(start, end, positionPath);
+    }
+
+    private void write(long start, long end, String positionPath) {
+        writer.append(file, Buffer.buffer(start + ";" + end + ";" + positionPath + "\n"))
+                .onFailure(cause -> Log.error("Write occupancy span to {} failed", file, cause));
+    }
+
+    private static long lastEnd(Sensor sensor) {
+        var last = sensor.spans.lastEntry();
+        return last == null || last.getValue().equals(last.getKey()) ? -1 : last.getValue();
+    }
+
+    private static long overlap(long spanStart, long spanEnd, long from, long to) {
+        return Math.max(0, Math.min(spanEnd, to) - Math.max(spanStart, from));
+    }
+
+    /**
+     * @return letzter Sicherungspunkt, 0 wenn keiner existiert
+     */
+    private long read() throws IOException {
+        Path path = Path.of(file);
+        if (!Files.exists(path)) return 0;
+        long checkpoint = 0;
+        Map<String, Long> pendingOpen = new HashMap<>();
+        Map<String, Long> open = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";", 3);
+                try {
+                    if (parts[0].equals(CHECKPOINT) && parts.length == 2) {
+                        checkpoint = Long.parseLong(parts[1]);
+                        open = pendingOpen;
+                        pendingOpen = new HashMap<>();
+                        continue;
+                    }
+                    if (parts.length != 3) continue;
+                    long start = Long.parseLong(parts[0]);
+                    String positionPath = SeriesDictionary.normalize(parts[2]);
+                    if (parts[1].isEmpty()) {
+                        pendingOpen.put(positionPath, start);
+                        continue;
+                    }
+                    long end = Long.parseLong(parts[1]);
+                    Sensor sensor = sensorOf(positionPath);
+                    sensor.firstSeen = Math.min(sensor.firstSeen, start);
+                    if (end > start) {
+                        sensor.spans.put(start, end);
+                        sensor.persistedEnd = Math.max(sensor.persistedEnd, end);
+                    }
+                    // nach dem Sicherungspunkt abgeschlossen
+                    open.remove(positionPath, start);
+                } catch (NumberFormatException e) {
+                    Log.warn("Skip invalid occupancy row '{}' in {}", line, file);
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry : open.entrySet()) {
+            Sensor sensor = sensorOf(entry.getKey());
+            sensor.firstSeen = Math.min(sensor.firstSeen, entry.getValue());
+            sensor.openSince = entry.getValue();
+            sensor.lastPresent = checkpoint - 1;
+            sensor.lastSample = checkpoint - 1;
+        }
+        for (Sensor sensor : sensors.values()) {
+            sensor.lastSample = Math.max(sensor.lastSample, sensor.persistedEnd);
+        }
+        return checkpoint;
+    }
+}
@@ -0,0 +1,35 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * Filter auf normalisierte Pfade, der im Gegensatz zu einem Lambda vergleichbar ist
+ * und daher als Schlüssel für zwischengespeicherte Abfragen dienen kann.
+ */
+public record PathFilter(Kind kind, String path) implements Predicate<String> {
+
+    public enum Kind {
+        ALL,
+        EXACT,
+        PREFIX
+    }
+
+    public static final PathFilter ALL = new PathFilter(Kind.ALL, "");
+
+    public static PathFilter exact(String positionPath) {
+        return new PathFilter(Kind.EXACT, SeriesDictionary.normalize(positionPath));
+    }
+
+    public static PathFilter prefix(String positionPath) {
+        return new PathFilter(Kind.PREFIX, SeriesDictionary.normalize(positionPath));
+    }
+
+    @Override
+    public boolean test(String positionPath) {
+        return switch (kind) {
+            case ALL -> true;
+            case EXACT -> positionPath.equals(path);
+            case PREFIX -> positionPath.startsWith(path);
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.time.Duration;
+
+/**
+ * Wie lange die Rohdaten einer Statistik aufbewahrt werden.
+ * Abgelaufen sind ganze Tages-Segmente, die vollständig vor dem Stichtag enden.
+ * Mit downsampledMaxAge werden abgelaufene Tage vorher zu Viertelstunden verdichtet ({@link DownsampledStore}),
+ * die ihrerseits nach downsampledMaxAge entfernt werden. Stunden- und Tages-Rollups bleiben immer erhalten.
+ *
+ * @param maxAge            Aufbewahrungsdauer der Rohdaten, null = unbegrenzt
+ * @param downsampledMaxAge Aufbewahrungsdauer der Viertelstunden, null = keine Viertelstunden
+ */
+public record RetentionPolicy(Duration maxAge, Duration downsampledMaxAge) {
+
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(null);
+
+    public RetentionPolicy {
+        if (maxAge != null && (maxAge.isNegative() || maxAge.isZero())) {
+            throw new IllegalArgumentException("maxAge must be positive: " + maxAge);
+        }
+        if (downsampledMaxAge != null) {
+            if (maxAge == null) {
+                throw new IllegalArgumentException("downsampledMaxAge requires maxAge");
+            }
+            if (downsampledMaxAge.compareTo(maxAge) < 0) {
+                throw new IllegalArgumentException("downsampledMaxAge must not be shorter than maxAge: "
+                        + downsampledMaxAge);
+            }
+        }
+    }
+
+    public RetentionPolicy(Duration maxAge) {
+        this(maxAge, null);
+    }
+
+    public static RetentionPolicy ofDays(int days) {
+        return new RetentionPolicy(Duration.ofDays(days));
+    }
+
+    /**
+     * Rohdaten für rawDays Tage, Viertelstunden für downsampledDays Tage, danach nur noch Stunden,
+     * z.B. tiered(14, 365)
+     */
+    public static RetentionPolicy tiered(int rawDays, int downsampledDays) {
+        return new RetentionPolicy(Duration.ofDays(rawDays), Duration.ofDays(downsampledDays));
+    }
+
+    public boolean keepsAll() {
+        return maxAge == null;
+    }
+
+    public boolean downsamples() {
+        return downsampledMaxAge != null;
+    }
+
+    /**
+     * @return Stichtag, vor dem Segmente entfernt werden dürfen
+     */
+    public long cutoff(long now) {
+        return keepsAll() ? Long.MIN_VALUE : now - maxAge.toMillis();
+    }
+
+    /**
+     * @return Stichtag, vor dem Viertelstunden entfernt werden dürfen
+     */
+    public long downsampledCutoff(long now) {
+        return downsamples() ? now - downsampledMaxAge.toMillis() : Long.MIN_VALUE;
+    }
+}
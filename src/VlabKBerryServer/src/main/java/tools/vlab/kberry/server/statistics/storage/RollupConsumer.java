@@ -0,0 +1,13 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+/**
+ * Empfängt verdichtete Buckets je Series
+ */
+@FunctionalInterface
+public interface RollupConsumer {
+
+    /**
+     * @param bucket Beginn des Buckets
+     */
+    void accept(long bucket, String positionPath, Rollup rollup);
+}
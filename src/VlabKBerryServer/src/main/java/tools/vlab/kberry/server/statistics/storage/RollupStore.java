@@ -0,0 +1,389 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Stunden- und Tages-Rollups (count/sum/min/max) pro Series.
+ * Werden beim Anhängen fortgeschrieben und als "bucket;count;sum;min;max;pfad" (normalisiert)
+ * neben den Rohdaten abgelegt. Zeilen sind additiv: Nachzügler für bereits
+ * geschriebene Buckets werden als weitere Zeile angehängt und beim Laden zusammengeführt.
+ * Offene Buckets werden nach einem Neustart aus den Rohdaten wiederhergestellt.
+ * Filter werden über den {@link SeriesIndex} in Series aufgelöst, nicht je Bucket geprüft.
+ * Stunden bleiben {@link #HOUR_WINDOW_MS} im Speicher, danach nur noch die Tage.
+ */
+public class RollupStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(RollupStore.class);
+    public static final long HOUR_MS = 60 * 60 * 1000L;
+    public static final long HOUR_WINDOW_MS = 35 * Segment.DAY_MS;
+
+    public enum Tier {
+        HOUR(HOUR_MS, "hour.rollup"),
+        DAY(Segment.DAY_MS, "day.rollup");
+
+        private final long span;
+        private final String fileName;
+
+        Tier(long span, String fileName) {
+            this.span = span;
+            this.fileName = fileName;
+        }
+
+        public long bucketOf(long timestamp) {
+            return Math.floorDiv(timestamp, span) * span;
+        }
+
+        long span() {
+            return span;
+        }
+
+        long ceil(long timestamp) {
+            return Math.floorDiv(timestamp + span - 1, span) * span;
+        }
+    }
+
+    /**
+     * Nicht durch Rollups abgedeckter Zeitraum [from, to]
+     */
+    public record Gap(long from, long to) {
+    }
+
+    public record Coverage(Rollup rollup, List<Gap> gaps) {
+    }
+
+    /**
+     * Wie {@link Coverage}, aber je normalisiertem Pfad
+     */
+    public record SeriesCoverage(Map<String, Rollup> rollups, List<Gap> gaps) {
+    }
+
+    private static class TierState {
+        private final NavigableMap<Long, Map<String, Rollup>> buckets = new TreeMap<>();
+        // alle Buckets vor diesem Zeitpunkt sind geschrieben
+        private long persistedUntil = 0;
+        private long openBucket = Long.MIN_VALUE;
+        // Buckets davor liegen nicht mehr im Speicher
+        private long evictedBefore = Long.MIN_VALUE;
+        // ältester Bucket mit Werten, auch wenn er nicht mehr im Speicher liegt
+        private long first = Long.MAX_VALUE;
+    }
+
+    private final Vertx vertx;
+    private final String directory;
+    private final String prefix;
+    private final SegmentWriter writer;
+    private final Map<Tier, TierState> tiers = new EnumMap<>(Tier.class);
+    private final SeriesIndex series = new SeriesIndex();
+
+    public RollupStore(Vertx vertx, String directory, WritePolicy writePolicy) {
+        this(vertx, directory, "", writePolicy);
+    }
+
+    /**
+     * @param prefix Präfix der Dateinamen, damit mehrere Rollups in einem Verzeichnis liegen können,
+     *               z.B. "consumption" für "consumption.hour.rollup"
+     */
+    public RollupStore(Vertx vertx, String directory, String prefix, WritePolicy writePolicy) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.prefix = prefix.isEmpty() ? "" : prefix + ".";
+        this.writer = new SegmentWriter(vertx, writePolicy);
+        for (Tier tier : Tier.values()) {
+            tiers.put(tier, new TierState());
+        }
+    }
+
+    /**
+     * Lädt die geschriebenen Rollups.
+     *
+     * @return Zeitpunkt, ab dem die Rohdaten erneut eingespielt werden müssen ({@link #replay})
+     */
+    public Future<Long> load() {
+        return vertx.executeBlocking(() -> {
+            synchronized (this) {
+                long hourWindow = TierCoverage.hourWindow(Instant.now().toEpochMilli());
+                long replayFrom = Long.MAX_VALUE;
+                series.clear();
+                for (Tier tier : Tier.values()) {
+                    TierState state = tiers.get(tier);
+                    state.buckets.clear();
+                    state.evictedBefore = tier == Tier.HOUR ? hourWindow : Long.MIN_VALUE;
+                    state.first = Long.MAX_VALUE;
+                    state.persistedUntil = readTier(tier, state);
+                    state.openBucket = Long.MIN_VALUE;
+                    replayFrom = Math.min(replayFrom, state.persistedUntil);
+                }
+                if (replayFrom == 0) {
+                    Log.info("No rollups found in {}, rebuild from raw data", directory);
+                }
+                return replayFrom;
+            }
+        });
+    }
+
+    public synchronized void add(long timestamp, String positionPath, double value) {
+        add(timestamp, positionPath, value, false);
+    }
+
+    /**
+     * Spielt einen Rohwert nach dem Start ein. Buckets, die bereits geschrieben sind, bleiben unverändert.
+     */
+    public synchronized void replay(long timestamp, String positionPath, double value) {
+        add(timestamp, positionPath, value, true);
+    }
+
+    /**
+     * Fasst [from, to] aus ganzen Tagen und Stunden zusammen.
+     * Ränder ohne ganze Stunde und Stunden außerhalb von {@link #HOUR_WINDOW_MS} werden als Lücken geliefert.
+     */
+    public synchronized Coverage cover(long from, long to, Predicate<String> positionPaths) {
+        Rollup rollup = new Rollup();
+        List<Gap> gaps = cover(from, to, positionPaths, (path, bucket) -> rollup.merge(bucket));
+        return new Coverage(rollup, gaps);
+    }
+
+    /**
+     * Wie {@link #cover}, hält die Series aber auseinander
+     */
+    public synchronized SeriesCoverage coverBySeries(long from, long to, Predicate<String> positionPaths) {
+        Map<String, Rollup> rollups = new HashMap<>();
+        List<Gap> gaps = cover(from, to, positionPaths,
+                (path, bucket) -> rollups.computeIfAbsent(path, p -> new Rollup()).merge(bucket));
+        return new SeriesCoverage(rollups, gaps);
+    }
+
+    /**
+     * Gibt die Buckets der Stufe, die in [from, to] beginnen, je Series aus, z.B. um Zeiträume ohne Rohdaten
+     * als Verlauf zu lesen. Stunden, die nicht mehr im Speicher liegen, werden blockierend aus der Datei gelesen,
+     * die übrigen Buckets laufen unter der Sperre des Stores.
+     */
+    public void forEachBucket(Tier tier, long from, long to, Set<String> positionPaths,
+                              RollupConsumer consumer) throws IOException {
+        long end = to == Long.MAX_VALUE ? to : to + 1;
+        long evictedBefore;
+        synchronized (this) {
+            evictedBefore = tiers.get(tier).evictedBefore;
+        }
+        if (from < evictedBefore) {
+            NavigableMap<Long, Map<String, Rollup>> older = new TreeMap<>();
+            readBuckets(tier, from, Math.min(end, evictedBefore), older);
+            emit(older, positionPaths, consumer);
+        }
+        synchronized (this) {
+            long start = Math.max(from, tiers.get(tier).evictedBefore);
+            if (start < end) {
+                emit(tiers.get(tier).buckets.subMap(start, true, end, false), positionPaths, consumer);
+            }
+        }
+    }
+
+    private static void emit(NavigableMap<Long, Map<String, Rollup>> buckets, Set<String> positionPaths,
+                             RollupConsumer consumer) {
+        for (Map.Entry<Long, Map<String, Rollup>> bucket : buckets.entrySet()) {
+            long start = bucket.getKey();
+            collect(bucket.getValue(), positionPaths, (path, rollup) -> consumer.accept(start, path, rollup));
+        }
+    }
+
+    /**
+     * Alle Series, zu denen Rollups vorliegen
+     */
+    public SeriesIndex series() {
+        return series;
+    }
+
+    /**
+     * Tage, an denen mindestens eine Series ihren letzten Wert hat.
+     * Reicht aus, um die letzten Werte aller Series aus den Rohdaten zu lesen.
+     */
+    public synchronized SortedSet<Long> lastDays() {
+        Map<String, Long> lastDay = new HashMap<>();
+        tiers.get(Tier.DAY).buckets.forEach((day, rollups) ->
+                rollups.keySet().forEach(path -> lastDay.merge(path, day, Math::max)));
+        return new TreeSet<>(lastDay.values());
+    }
+
+    /**
+     * Beginn des letzten Buckets der Stufe vor before, der Werte des Pfads enthält, -1 ohne
+     */
+    public synchronized long lastBucketBefore(Tier tier, String positionPath, long before) {
+        for (Map.Entry<Long, Map<String, Rollup>> bucket
+                : tiers.get(tier).buckets.headMap(before, false).descendingMap().entrySet()) {
+            if (bucket.getValue().containsKey(positionPath)) return bucket.getKey();
+        }
+        return -1;
+    }
+
+    /**
+     * Beginn der ältesten Stunde mit Werten, Long.MAX_VALUE wenn noch nichts erfasst wurde
+     */
+    public synchronized long firstTimestamp() {
+        return tiers.get(Tier.HOUR).first;
+    }
+
+    /**
+     * Offene Buckets werden nicht geschrieben, sie entstehen beim nächsten Start aus den Rohdaten neu
+     */
+    public Future<Void> stop() {
+        return writer.close();
+    }
+
+    private void add(long timestamp, String positionPath, double value, boolean replay) {
+        series.add(positionPath);
+        for (Tier tier : Tier.values()) {
+            TierState state = tiers.get(tier);
+            long bucket = tier.bucketOf(timestamp);
+            if (bucket < state.persistedUntil) {
+                if (replay) continue;
+                // Nachzügler für einen bereits geschriebenen Bucket
+                Rollup late = new Rollup();
+                late.add(value);
+                write(tier, bucket, positionPath, late);
+            }
+            state.first = Math.min(state.first, bucket);
+            if (TierCoverage.evicted(bucket, state.persistedUntil, state.evictedBefore)) continue;
+            state.buckets.computeIfAbsent(bucket, b -> new HashMap<>())
+                    .computeIfAbsent(positionPath, p -> new Rollup())
+                    .add(value);
+            if (bucket > state.openBucket) {
+                closeBuckets(tier, state, bucket);
+                state.openBucket = bucket;
+            }
+        }
+    }
+
+    private void closeBuckets(Tier tier, TierState state, long until) {
+        if (until <= state.persistedUntil) return;
+        state.buckets.subMap(state.persistedUntil, true, until, false)
+                .forEach((bucket, rollups) -> rollups.forEach((path, rollup) -> write(tier, bucket, path, rollup)));
+        state.persistedUntil = until;
+        if (tier == Tier.HOUR) {
+            state.evictedBefore = TierCoverage.evictHours(state.buckets, state.evictedBefore, until);
+        }
+    }
+
+    private void write(Tier tier, long bucket, String positionPath, Rollup rollup) {
+        String row = bucket + ";" + rollup.count() + ";" + rollup.sum() + ";" + rollup.min() + ";" + rollup.max()
+                + ";" + positionPath + "\n";
+        writer.append(fileOf(tier).toString(), Buffer.buffer(row))
+                .onFailure(cause -> Log.error("Write {} rollup failed in {}", tier, directory, cause));
+    }
+
+    private Path fileOf(Tier tier) {
+        return Path.of(directory, prefix + tier.fileName);
+    }
+
+    private List<Gap> cover(long from, long to, Predicate<String> positionPaths, BiConsumer<String, Rollup> target) {
+        Set<String> filter = series.resolve(positionPaths);
+        return TierCoverage.cover(from, to, tiers.get(Tier.HOUR).evictedBefore,
+                (tier, start, end) -> collect(tier, start, end, filter, target));
+    }
+
+    /**
+     * Nimmt je Bucket die kleinere Seite: die gesuchten Series nachschlagen oder die vorhandenen prüfen
+     */
+    private void collect(Tier tier, long from, long to, Set<String> positionPaths,
+                         BiConsumer<String, Rollup> target) {
+        if (positionPaths.isEmpty()) return;
+        for (Map<String, Rollup> rollups : tiers.get(tier).buckets.subMap(from, true, to, false).values()) {
+            collect(rollups, positionPaths, target);
+        }
+    }
+
+    private static void collect(Map<String, Rollup> rollups, Set<String> positionPaths,
+                                BiConsumer<String, Rollup> target) {
+        if (positionPaths.size() < rollups.size()) {
+            for (String path : positionPaths) {
+                Rollup rollup = rollups.get(path);
+                if (rollup != null) {
+                    target.accept(path, rollup);
+                }
+            }
+        } else {
+            rollups.forEach((path, rollup) -> {
+                if (positionPaths.contains(path)) {
+                    target.accept(path, rollup);
+                }
+            });
+        }
+    }
+
+    /**
+     * Lädt die Buckets ab {@link TierState#evictedBefore}, ältere werden nur für Series und Zeitraum gezählt
+     *
+     * @return Ende des letzten geschriebenen Buckets
+     */
+    private long readTier(Tier tier, TierState state) throws IOException {
+        long[] persistedUntil = {0};
+        readRows(tier, (bucket, positionPath, row) -> {
+            series.add(positionPath);
+            state.first = Math.min(state.first, bucket);
+            persistedUntil[0] = Math.max(persistedUntil[0], bucket + tier.span);
+            if (bucket < state.evictedBefore) return;
+            state.buckets.computeIfAbsent(bucket, b -> new HashMap<>())
+                    .merge(positionPath, parseRollup(row), Rollup::merge);
+        });
+        return persistedUntil[0];
+    }
+
+    /**
+     * Liest die Buckets in [from, to) aus der Datei, z.B. Stunden, die nicht mehr im Speicher liegen
+     */
+    private void readBuckets(Tier tier, long from, long to, NavigableMap<Long, Map<String, Rollup>> target)
+            throws IOException {
+        readRows(tier, (bucket, positionPath, row) -> {
+            if (bucket < from || bucket >= to) return;
+            target.computeIfAbsent(bucket, b -> new HashMap<>())
+                    .merge(positionPath, parseRollup(row), Rollup::merge);
+        });
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        void accept(long bucket, String positionPath, String[] row);
+    }
+
+    private void readRows(Tier tier, RowHandler handler) throws IOException {
+        Path file = fileOf(tier);
+        if (!Files.exists(file)) return;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";", 6);
+                if (parts.length != 6) continue;
+                try {
+                    handler.accept(Long.parseLong(parts[0]), SeriesDictionary.normalize(parts[5]), parts);
+                } catch (NumberFormatException e) {
+                    Log.warn("Skip invalid rollup row '{}' in {}", line, file);
+                }
+            }
+        }
+    }
+
+    private static Rollup parseRollup(String[] row) {
+        return new Rollup(Long.parseLong(row[1]), Double.parseDouble(row[2]),
+                Double.parseDouble(row[3]), Double.parseDouble(row[4]));
+    }
+}
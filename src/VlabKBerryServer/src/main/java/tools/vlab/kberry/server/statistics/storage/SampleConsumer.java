@@ -0,0 +1,10 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+/**
+ * Empfängt die Werte eines Scans ohne Umweg über Eintrags-Objekte
+ */
+@FunctionalInterface
+public interface SampleConsumer {
+
+    void accept(long timestamp, String positionPath, double value);
+}
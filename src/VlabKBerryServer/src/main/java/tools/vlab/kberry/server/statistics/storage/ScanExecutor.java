@@ -0,0 +1,207 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Liest und verdichtet Rohdaten auf einem gemeinsamen Worker-Pool ({@link #POOL_NAME}) statt auf dem Event-Loop.
+ * Ein Scan wird in unabhängige Teile zerlegt (Segmente bzw. Tage), die parallel gelesen
+ * und danach in ihrer Reihenfolge an den Empfänger gegeben werden. Der Empfänger wird nie gleichzeitig aufgerufen.
+ * Je Scan sind höchstens poolSize Teile im Voraus gelesen, das begrenzt Threads und Speicher.
+ * Scans, die länger als der Timeout laufen oder bei {@link #cancelAll()} noch laufen, werden abgebrochen
+ * und schlagen mit einer {@link CancellationException} fehl. Der Pool bleibt bis zum Schließen von Vert.x bestehen.
+ */
+public class ScanExecutor {
+
+    public static final String POOL_NAME = "statistics-scan";
+    // so oft wird beim Lesen und Ausgeben auf einen Abbruch geprüft
+    private static final int CHECK_INTERVAL = 4096;
+
+    /**
+     * Liest einen Teil blockierend, auf einem Thread des Pools
+     */
+    @FunctionalInterface
+    public interface ChunkReader<C> {
+        void read(C chunk, SampleConsumer consumer) throws Exception;
+    }
+
+    private final Vertx vertx;
+    private final WorkerExecutor executor;
+    private final int poolSize;
+    private final long timeoutMs;
+    private final Set<Cancellation> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param poolSize  Threads des gemeinsamen Pools, z.B. die 4 Kerne des Pi.
+     *                  Gilt der Name bereits, wird der bestehende Pool mitbenutzt.
+     * @param timeoutMs Höchstdauer eines Scans, 0 = unbegrenzt
+     */
+    public ScanExecutor(Vertx vertx, int poolSize, long timeoutMs) {
+        this.vertx = vertx;
+        this.poolSize = Math.max(1, poolSize);
+        this.timeoutMs = timeoutMs;
+        this.executor = timeoutMs > 0
+                ? vertx.createSharedWorkerExecutor(POOL_NAME, this.poolSize, timeoutMs, TimeUnit.MILLISECONDS)
+                : vertx.createSharedWorkerExecutor(POOL_NAME, this.poolSize);
+    }
+
+    /**
+     * Führt eine blockierende Aufgabe auf dem Pool aus, z.B. das Verdichten bereits gelesener Werte
+     */
+    public <R> Future<R> execute(Callable<R> task) {
+        return executor.executeBlocking(task, false);
+    }
+
+    /**
+     * Liest die Teile in der gegebenen Reihenfolge. Ein einzelner Teil oder ein Pool mit nur einem Thread
+     * wird der Reihe nach ohne Zwischenspeicher gelesen.
+     */
+    public <C> Future<Void> scan(List<C> chunks, ChunkReader<C> reader, SampleConsumer consumer) {
+        if (chunks.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        Cancellation cancellation = begin();
+        SampleConsumer guarded = cancellation.guard(consumer);
+        Future<Void> result;
+        if (chunks.size() == 1 || poolSize == 1) {
+            result = execute(() -> {
+                for (C chunk : chunks) {
+                    cancellation.check();
+                    reader.read(chunk, guarded);
+                }
+                return null;
+            });
+        } else {
+            result = parallel(chunks, reader, guarded, cancellation);
+        }
+        return result.andThen(done -> end(cancellation));
+    }
+
+    /**
+     * Bricht alle laufenden Scans ab, neue Scans sind weiterhin möglich
+     */
+    public void cancelAll() {
+        running.forEach(Cancellation::cancel);
+    }
+
+    private <C> Future<Void> parallel(List<C> chunks, ChunkReader<C> reader, SampleConsumer consumer,
+                                      Cancellation cancellation) {
+        AtomicReferenceArray<Future<Samples>> parsed = new AtomicReferenceArray<>(chunks.size());
+        for (int i = 0; i < Math.min(poolSize, chunks.size()); i++) {
+            parsed.set(i, parse(chunks.get(i), reader, cancellation));
+        }
+        Future<Void> result = Future.succeededFuture();
+        for (int i = 0; i < chunks.size(); i++) {
+            int index = i;
+            result = result.compose(v -> {
+                int next = index + poolSize;
+                if (next < chunks.size()) {
+                    parsed.set(next, parse(chunks.get(next), reader, cancellation));
+                }
+                return parsed.get(index).compose(samples -> execute(() -> {
+                    samples.forEach(consumer);
+                    return null;
+                }));
+            });
+        }
+        // bereits gestartete Teile nach einem Fehler nicht zu Ende lesen
+        return result.onFailure(cause -> cancellation.cancel());
+    }
+
+    private <C> Future<Samples> parse(C chunk, ChunkReader<C> reader, Cancellation cancellation) {
+        return execute(() -> {
+            cancellation.check();
+            Samples samples = new Samples(cancellation);
+            reader.read(chunk, samples);
+            return samples;
+        });
+    }
+
+    private Cancellation begin() {
+        Cancellation cancellation = new Cancellation();
+        if (timeoutMs > 0) {
+            cancellation.timer = vertx.setTimer(timeoutMs, id -> cancellation.cancel());
+        }
+        running.add(cancellation);
+        return cancellation;
+    }
+
+    private void end(Cancellation cancellation) {
+        running.remove(cancellation);
+        if (cancellation.timer >= 0) {
+            vertx.cancelTimer(cancellation.timer);
+        }
+    }
+
+    private static final class Cancellation {
+
+        private volatile boolean cancelled = false;
+        private long timer = -1;
+
+        private void cancel() {
+            cancelled = true;
+        }
+
+        private void check() {
+            if (cancelled) {
+                throw new CancellationException("Statistics scan cancelled");
+            }
+        }
+
+        private SampleConsumer guard(SampleConsumer consumer) {
+            int[] count = {0};
+            return (ts, path, value) -> {
+                if (++count[0] % CHECK_INTERVAL == 0) {
+                    check();
+                }
+                consumer.accept(ts, path, value);
+            };
+        }
+    }
+
+    /**
+     * Gelesene Werte eines Teils bis zur Ausgabe, die Pfade sind die des {@link SeriesDictionary}
+     */
+    private static final class Samples implements SampleConsumer {
+
+        private final Cancellation cancellation;
+        private long[] timestamps = new long[256];
+        private String[] positionPaths = new String[256];
+        private double[] values = new double[256];
+        private int size = 0;
+
+        private Samples(Cancellation cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void accept(long timestamp, String positionPath, double value) {
+            if (size == timestamps.length) {
+                cancellation.check();
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                positionPaths = Arrays.copyOf(positionPaths, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            positionPaths[size] = positionPath;
+            values[size] = value;
+            size++;
+        }
+
+        private void forEach(SampleConsumer consumer) {
+            for (int i = 0; i < size; i++) {
+                consumer.accept(timestamps[i], positionPaths[i], values[i]);
+            }
+        }
+    }
+}
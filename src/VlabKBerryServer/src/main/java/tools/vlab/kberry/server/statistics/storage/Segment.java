@@ -0,0 +1,44 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.json.JsonObject;
+
+import java.time.LocalDate;
+
+/**
+ * Zeitabschnitt einer Statistik als eigene Datei: [from, to)
+ */
+public record Segment(String name, long from, long to) {
+
+    public static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Tages-Segment (UTC), in das der Zeitstempel fällt
+     */
+    public static Segment ofDay(long timestamp, String extension) {
+        long day = Math.floorDiv(timestamp, DAY_MS);
+        return new Segment(LocalDate.ofEpochDay(day) + extension, day * DAY_MS, (day + 1) * DAY_MS);
+    }
+
+    public boolean contains(long timestamp) {
+        return timestamp >= from && timestamp < to;
+    }
+
+    public boolean overlaps(long rangeFrom, long rangeTo) {
+        return from <= rangeTo && to > rangeFrom;
+    }
+
+    public boolean endsBefore(long timestamp) {
+        return to <= timestamp;
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("name", name)
+                .put("from", from)
+                .put("to", to);
+    }
+
+    public static Segment fromJson(JsonObject json) {
+        return new Segment(json.getString("name"), json.getLong("from"), json.getLong("to"));
+    }
+}
@@ -0,0 +1,171 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Verzeichnis aller Segmente einer Statistik mit ihren Zeitgrenzen.
+ * Wird als kleine JSON-Datei neben den Segmenten abgelegt, damit Abfragen
+ * nur die Segmente öffnen müssen, die den Zeitraum überlappen.
+ */
+public class SegmentManifest {
+
+    private static final Logger Log = LoggerFactory.getLogger(SegmentManifest.class);
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final String directory;
+    private final String extension;
+    private final String manifestName;
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Future<Void> saving = Future.succeededFuture();
+
+    public SegmentManifest(Vertx vertx, String directory, String extension, String manifestName) {
+        this.vertx = vertx;
+        this.fs = vertx.fileSystem();
+        this.directory = directory;
+        this.extension = extension;
+        this.manifestName = manifestName;
+    }
+
+    public Future<Void> load() {
+        String manifestFile = manifestFile();
+        return fs.exists(manifestFile)
+                .compose(exists -> {
+                    if (!exists) return rebuild();
+                    return fs.readFile(manifestFile)
+                            .map(buffer -> {
+                                segments.clear();
+                                buffer.toJsonArray().stream()
+                                        .map(json -> Segment.fromJson((JsonObject) json))
+                                        .forEach(segment -> segments.put(segment.from(), segment));
+                                return null;
+                            });
+                });
+    }
+
+    /**
+     * Baut das Manifest aus den vorhandenen Segment-Dateien neu auf
+     */
+    public Future<Void> rebuild() {
+        return fs.readDir(directory, ".*" + extension.replace(".", "\\.") + "$")
+                .compose(files -> {
+                    segments.clear();
+                    for (String file : files) {
+                        String name = Path.of(file).getFileName().toString();
+                        try {
+                            LocalDate day = LocalDate.parse(name.substring(0, name.length() - extension.length()));
+                            Segment segment = Segment.ofDay(day.toEpochDay() * Segment.DAY_MS, extension);
+                            segments.put(segment.from(), segment);
+                        } catch (DateTimeParseException e) {
+                            Log.warn("Ignore unknown segment file {}", file);
+                        }
+                    }
+                    Log.info("Rebuilt segment manifest for {} with {} segments", directory, segments.size());
+                    return save();
+                });
+    }
+
+    public Segment segmentFor(long timestamp) {
+        var entry = segments.floorEntry(timestamp);
+        if (entry != null && entry.getValue().contains(timestamp)) {
+            return entry.getValue();
+        }
+        return null;
+    }
+
+    public Future<Segment> getOrCreate(long timestamp) {
+        Segment existing = segmentFor(timestamp);
+        if (existing != null) {
+            return Future.succeededFuture(existing);
+        }
+        Segment segment = Segment.ofDay(timestamp, extension);
+        segments.putIfAbsent(segment.from(), segment);
+        return save().map(segment);
+    }
+
+    public List<Segment> overlapping(long from, long to) {
+        return segments.values().stream()
+                .filter(segment -> segment.overlaps(from, to))
+                .toList();
+    }
+
+    /**
+     * Beginn des ältesten Segments, Long.MAX_VALUE ohne Segmente
+     */
+    public long firstTimestamp() {
+        var first = segments.firstEntry();
+        return first == null ? Long.MAX_VALUE : first.getValue().from();
+    }
+
+    /**
+     * Ende des jüngsten Segments, Long.MIN_VALUE ohne Segmente
+     */
+    public long lastTimestamp() {
+        var last = segments.lastEntry();
+        return last == null ? Long.MIN_VALUE : last.getValue().to();
+    }
+
+    public List<Segment> all() {
+        return new ArrayList<>(segments.values());
+    }
+
+    public Future<Void> remove(Segment segment) {
+        segments.remove(segment.from());
+        return save();
+    }
+
+    /**
+     * Entfernt alle Segmente, die vollständig vor cutoff enden, und löscht deren Dateien.
+     * Läuft ohne den Schreiber: ein verspäteter Wert für einen entfernten Tag legt das Segment neu an.
+     *
+     * @return Anzahl entfernter Segmente
+     */
+    public Future<Integer> dropBefore(long cutoff) {
+        List<Segment> expired = segments.headMap(cutoff).values().stream()
+                .filter(segment -> segment.endsBefore(cutoff))
+                .toList();
+        if (expired.isEmpty()) {
+            return Future.succeededFuture(0);
+        }
+        expired.forEach(segment -> segments.remove(segment.from()));
+        Future<Void> result = save();
+        for (Segment segment : expired) {
+            String path = pathOf(segment);
+            result = result.compose(v -> fs.exists(path))
+                    .compose(exists -> exists ? fs.delete(path) : Future.succeededFuture());
+        }
+        return result.map(expired.size());
+    }
+
+    public String pathOf(Segment segment) {
+        return Path.of(directory, segment.name()).toString();
+    }
+
+    private synchronized Future<Void> save() {
+        JsonArray json = new JsonArray();
+        segments.values().forEach(segment -> json.add(segment.toJson()));
+        Buffer buffer = json.toBuffer();
+        // Schreibvorgänge nacheinander, damit sich keine Stände überholen
+        saving = saving.transform(ignore -> AtomicFile.replace(vertx, manifestFile(), buffer));
+        return saving;
+    }
+
+    private String manifestFile() {
+        return Path.of(directory, manifestName).toString();
+    }
+}
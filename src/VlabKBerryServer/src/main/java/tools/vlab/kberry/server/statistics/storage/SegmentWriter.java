@@ -0,0 +1,157 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Einziger Schreiber einer Statistik.
+ * Sammelt alle Zeilen eines Ticks und schreibt sie in einem Vorgang in das offen
+ * gehaltene Segment. Alle Dateioperationen (Schreiben, Aufräumen) laufen
+ * nacheinander über dieselbe Warteschlange.
+ */
+public class SegmentWriter {
+
+    /**
+     * Bringt eine Datei vor dem Anhängen auf einen gültigen Stand, z.B. indem ein beim Stromausfall
+     * halb geschriebener Eintrag abgeschnitten wird. Läuft blockierend auf einem Worker.
+     */
+    @FunctionalInterface
+    public interface TailRepair {
+        void repair(Path file) throws IOException;
+    }
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final WritePolicy policy;
+    private final TailRepair repair;
+
+    private Map<String, Buffer> pending = new LinkedHashMap<>();
+    private List<Promise<Void>> waiting = new ArrayList<>();
+    private boolean scheduled = false;
+    private Future<?> tail = Future.succeededFuture();
+
+    private AsyncFile file;
+    private String filePath;
+
+    public SegmentWriter(Vertx vertx, WritePolicy policy) {
+        this(vertx, policy, null);
+    }
+
+    /**
+     * @param repair wird vor jedem Öffnen einer Datei zum Anhängen ausgeführt, null = ohne
+     */
+    public SegmentWriter(Vertx vertx, WritePolicy policy, TailRepair repair) {
+        this.vertx = vertx;
+        this.fs = vertx.fileSystem();
+        this.policy = policy;
+        this.repair = repair;
+    }
+
+    /**
+     * Merkt die Bytes für den nächsten gemeinsamen Schreibvorgang vor.
+     * Das Future ist erfüllt, sobald der Vorgang geschrieben wurde.
+     */
+    public synchronized Future<Void> append(String path, Buffer bytes) {
+        pending.computeIfAbsent(path, p -> Buffer.buffer()).appendBuffer(bytes);
+        Promise<Void> promise = Promise.promise();
+        waiting.add(promise);
+        if (!scheduled) {
+            scheduled = true;
+            if (policy.commitDelayMs() > 0) {
+                vertx.setTimer(policy.commitDelayMs(), id -> commit());
+            } else {
+                vertx.runOnContext(v -> commit());
+            }
+        }
+        return promise.future();
+    }
+
+    /**
+     * Führt die Operation exklusiv aus: vorher wird die offene Datei geschlossen,
+     * Schreibvorgänge warten, bis sie abgeschlossen ist.
+     */
+    public <T> Future<T> exclusive(Supplier<Future<T>> operation) {
+        return enqueue(() -> closeFile().compose(v -> operation.get()));
+    }
+
+    public Future<Void> close() {
+        commit();
+        return enqueue(this::closeFile);
+    }
+
+    private void commit() {
+        Map<String, Buffer> batch;
+        List<Promise<Void>> promises;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+            batch = pending;
+            promises = waiting;
+            pending = new LinkedHashMap<>();
+            waiting = new ArrayList<>();
+            scheduled = false;
+        }
+        enqueue(() -> writeBatch(batch))
+                .onComplete(result -> promises.forEach(promise -> promise.handle(result)));
+    }
+
+    private synchronized <T> Future<T> enqueue(Supplier<Future<T>> operation) {
+        Future<T> result = tail.transform(ignore -> operation.get());
+        tail = result;
+        return result;
+    }
+
+    private Future<Void> writeBatch(Map<String, Buffer> batch) {
+        Future<Void> result = Future.succeededFuture();
+        for (Map.Entry<String, Buffer> entry : batch.entrySet()) {
+            // jede Datei vor dem Wechsel synchronisieren, nicht nur die zuletzt geschriebene
+            result = result.compose(v -> fileFor(entry.getKey()))
+                    .compose(target -> target.write(entry.getValue())
+                            .compose(v -> policy.fsync() ? target.flush() : Future.succeededFuture()));
+        }
+        // bei Fehlern die Datei beim nächsten Mal neu öffnen
+        return result.recover(cause -> closeFile().transform(ignore -> Future.failedFuture(cause)));
+    }
+
+    private Future<AsyncFile> fileFor(String path) {
+        if (file != null && path.equals(filePath)) {
+            return Future.succeededFuture(file);
+        }
+        return closeFile()
+                .compose(v -> repair == null ? Future.succeededFuture() : vertx.<Void>executeBlocking(() -> {
+                    repair.repair(Path.of(path));
+                    return null;
+                }))
+                .compose(v -> fs.open(path, new OpenOptions().setAppend(true).setCreate(true)))
+                .map(opened -> {
+                    file = opened;
+                    filePath = path;
+                    return opened;
+                });
+    }
+
+    private Future<Void> closeFile() {
+        if (file == null) {
+            return Future.succeededFuture();
+        }
+        AsyncFile closing = file;
+        file = null;
+        filePath = null;
+        return closing.close();
+    }
+}
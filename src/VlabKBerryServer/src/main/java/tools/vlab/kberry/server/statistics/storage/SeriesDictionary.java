@@ -0,0 +1,203 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Persistente Zuordnung normalisierter PositionPath -> kleine Series-ID.
+ * Pfade werden ohne Leerraum am Rand und in Kleinschreibung abgelegt, siehe {@link #normalize(String)}.
+ * Ältere Einträge, die sich nur in der Schreibweise unterscheiden, bleiben als weitere ID desselben Pfads erhalten.
+ * Eine neue ID wird erst herausgegeben, wenn series.json mit ihr geschrieben ist. So steht nach einem Absturz
+ * keine Zeile mit einer ID auf der Platte, die beim Laden fehlt und danach an einen anderen Pfad vergeben würde.
+ */
+public class SeriesDictionary {
+
+    private static final String DICTIONARY_FILE = "series.json";
+
+    private final Vertx vertx;
+    private final FileSystem fs;
+    private final String file;
+    // gespeicherte Schreibweise -> ID, so wie sie in series.json steht
+    private final Map<String, Integer> stored = new HashMap<>();
+    // normalisierter Pfad -> ID für neue Zeilen
+    private final Map<String, Integer> ids = new HashMap<>();
+    // ID -> normalisierter Pfad
+    private final List<String> paths = new ArrayList<>();
+    // vergebene IDs, die noch nicht in series.json stehen
+    private final Set<Integer> unsaved = new HashSet<>();
+    private Future<Void> saving = Future.succeededFuture();
+
+    public SeriesDictionary(Vertx vertx, String directory) {
+        this.vertx = vertx;
+        this.fs = vertx.fileSystem();
+        this.file = Path.of(directory, DICTIONARY_FILE).toString();
+    }
+
+    public static String normalize(String positionPath) {
+        return positionPath.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public Future<Void> load() {
+        return fs.exists(file)
+                .compose(exists -> exists ? fs.readFile(file) : Future.succeededFuture(Buffer.buffer("{}")))
+                .map(buffer -> {
+                    JsonObject json = buffer.toJsonObject();
+                    synchronized (this) {
+                        stored.clear();
+                        ids.clear();
+                        paths.clear();
+                        unsaved.clear();
+                        json.forEach(entry -> put(entry.getKey(), ((Number) entry.getValue()).intValue()));
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Liefert die ID des Pfads, neue Pfade bekommen die nächste freie ID.
+     * Ist die ID noch nicht gespeichert, wird das Speichern abgewartet, ein gescheitertes Speichern wiederholt.
+     */
+    public synchronized Future<Integer> idOf(String positionPath) {
+        int id = assign(positionPath);
+        if (!unsaved.contains(id)) {
+            return Future.succeededFuture(id);
+        }
+        if (saving.failed()) {
+            save();
+        }
+        return saving.map(id);
+    }
+
+    /**
+     * Wie {@link #idOf}, aber ohne auf das Speichern zu warten, z.B. für Migrationen,
+     * die vor dem Abschluss {@link #flush()} abwarten
+     */
+    synchronized int assign(String positionPath) {
+        String normalized = normalize(positionPath);
+        Integer id = ids.get(normalized);
+        if (id != null) {
+            return id;
+        }
+        int newId = paths.size();
+        put(normalized, newId);
+        unsaved.add(newId);
+        save();
+        return newId;
+    }
+
+    /**
+     * Abgeschlossen, wenn alle bisher vergebenen IDs gespeichert sind
+     */
+    public synchronized Future<Void> flush() {
+        if (unsaved.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        if (saving.failed()) {
+            save();
+        }
+        return saving;
+    }
+
+    /**
+     * @return normalisierter Pfad der ID
+     */
+    public synchronized String pathOf(int id) {
+        if (id < 0 || id >= paths.size() || paths.get(id) == null) {
+            throw new IllegalArgumentException("Unknown series id " + id);
+        }
+        return paths.get(id);
+    }
+
+    /**
+     * Löst einen Filter auf normalisierte Pfade einmalig in eine ID-Menge auf.
+     * IDs, die erst während eines Scans entstehen, werden beim ersten Zugriff nachgeprüft.
+     */
+    public Selection select(Predicate<String> positionPaths) {
+        return new Selection(positionPaths);
+    }
+
+    private void put(String positionPath, int id) {
+        String normalized = normalize(positionPath);
+        stored.put(positionPath, id);
+        ids.putIfAbsent(normalized, id);
+        while (paths.size() <= id) {
+            paths.add(null);
+        }
+        paths.set(id, normalized);
+    }
+
+    private synchronized void save() {
+        JsonObject json = new JsonObject();
+        stored.forEach(json::put);
+        Buffer buffer = json.toBuffer();
+        Set<Integer> included = Set.copyOf(unsaved);
+        saving = saving.transform(ignore -> AtomicFile.replace(vertx, file, buffer))
+                .andThen(result -> {
+                    if (result.succeeded()) {
+                        synchronized (this) {
+                            unsaved.removeAll(included);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Menge der IDs, deren Pfad zu einem Filter passt
+     */
+    public final class Selection {
+
+        private static final byte UNKNOWN = 0;
+        private static final byte SELECTED = 1;
+        private static final byte REJECTED = 2;
+
+        private final Predicate<String> positionPaths;
+        private byte[] state;
+
+        private Selection(Predicate<String> positionPaths) {
+            this.positionPaths = positionPaths;
+            synchronized (SeriesDictionary.this) {
+                this.state = new byte[paths.size()];
+                for (int id = 0; id < state.length; id++) {
+                    state[id] = test(paths.get(id));
+                }
+            }
+        }
+
+        /**
+         * Unbekannte IDs (z.B. nach Verlust von series.json) gehören nie zur Auswahl
+         */
+        public boolean contains(int id) {
+            if (id < 0) return false;
+            if (id >= state.length || state[id] == UNKNOWN) {
+                String path;
+                synchronized (SeriesDictionary.this) {
+                    if (id >= paths.size()) return false;
+                    path = paths.get(id);
+                }
+                if (id >= state.length) {
+                    state = Arrays.copyOf(state, id + 1);
+                }
+                state[id] = test(path);
+            }
+            return state[id] == SELECTED;
+        }
+
+        private byte test(String path) {
+            return path != null && positionPaths.test(path) ? SELECTED : REJECTED;
+        }
+    }
+}
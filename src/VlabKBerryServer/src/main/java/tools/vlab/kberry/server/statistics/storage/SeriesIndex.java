@@ -0,0 +1,112 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Baum der bekannten Series nach den Abschnitten ihres normalisierten Pfads (Ort / Etage / Raum / Gerät).
+ * Ein {@link PathFilter} wird darüber einmalig in die Menge seiner Series aufgelöst und bis zur nächsten
+ * neuen Series zwischengespeichert, Abfragen über Etagen oder das ganze Haus vergleichen so keine Pfade mehr.
+ * Ein Präfix verhält sich wie {@link String#startsWith}, "home/eg" umfasst also auch "home/eg2/...".
+ */
+public class SeriesIndex {
+
+    private static final String SEPARATOR = "/";
+
+    private static final class Node {
+        private final NavigableMap<String, Node> children = new TreeMap<>();
+        // normalisierter Pfad, wenn an diesem Knoten eine Series endet
+        private String series;
+    }
+
+    private final Node root = new Node();
+    private final Set<String> all = new HashSet<>();
+    private final Map<PathFilter, Set<String>> resolved = new HashMap<>();
+
+    /**
+     * @param positionPath normalisierter Pfad
+     * @return true, wenn die Series neu ist
+     */
+    public synchronized boolean add(String positionPath) {
+        if (all.contains(positionPath)) {
+            return false;
+        }
+        Node node = root;
+        for (String segment : positionPath.split(SEPARATOR, -1)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        node.series = positionPath;
+        all.add(positionPath);
+        resolved.clear();
+        return true;
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        all.clear();
+        resolved.clear();
+    }
+
+    public synchronized int size() {
+        return all.size();
+    }
+
+    /**
+     * Series, deren Pfad zum Filter passt. Andere Filter als {@link PathFilter} werden je Series einmal geprüft.
+     *
+     * @return unveränderliche Menge normalisierter Pfade
+     */
+    public synchronized Set<String> resolve(Predicate<String> positionPaths) {
+        if (positionPaths instanceof PathFilter filter) {
+            return resolved.computeIfAbsent(filter, this::walk);
+        }
+        Set<String> result = new HashSet<>();
+        for (String path : all) {
+            if (positionPaths.test(path)) {
+                result.add(path);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private Set<String> walk(PathFilter filter) {
+        Set<String> result = new HashSet<>();
+        switch (filter.kind()) {
+            case ALL -> result.addAll(all);
+            case EXACT -> {
+                if (all.contains(filter.path())) {
+                    result.add(filter.path());
+                }
+            }
+            case PREFIX -> {
+                String[] segments = filter.path().split(SEPARATOR, -1);
+                Node node = root;
+                for (int i = 0; i < segments.length - 1 && node != null; i++) {
+                    node = node.children.get(segments[i]);
+                }
+                if (node != null) {
+                    // der letzte Abschnitt darf unvollständig sein, passend sind alle Kinder, die damit beginnen
+                    String last = segments[segments.length - 1];
+                    for (Map.Entry<String, Node> child : node.children.tailMap(last, true).entrySet()) {
+                        if (!child.getKey().startsWith(last)) break;
+                        collect(child.getValue(), result);
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static void collect(Node node, Set<String> result) {
+        if (node.series != null) {
+            result.add(node.series);
+        }
+        node.children.values().forEach(child -> collect(child, result));
+    }
+}
@@ -0,0 +1,261 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static tools.vlab.kberry.server.statistics.storage.RollupStore.HOUR_MS;
+import static tools.vlab.kberry.server.statistics.storage.RollupStore.Tier;
+
+/**
+ * Stunden- und Tages-Histogramme ({@link Histogram}) pro Series, zeitgewichtet über {@link TimeWeighting}.
+ * Werden wie die Rollups beim Anhängen fortgeschrieben und als "bucket;min;max;klassen;pfad"
+ * additiv abgelegt, die erste Zeile hält die Auflösung ("#;resolution").
+ * Eine Stunde wird erst maxGapMs nach ihrem Ende geschrieben, weil ihr letzter Wert erst
+ * mit dem nächsten Wert derselben Series abgeschlossen wird.
+ * Stunden-Histogramme bleiben wie die Rollups {@link RollupStore#HOUR_WINDOW_MS} im Speicher, danach nur noch die Tage.
+ */
+public class SketchStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(SketchStore.class);
+    private static final String HEADER = "#";
+
+    /**
+     * Wie {@link RollupStore.Coverage}, die Lücken müssen aus den Rohdaten ergänzt werden
+     */
+    public record Coverage(Histogram histogram, List<RollupStore.Gap> gaps) {
+    }
+
+    private static class TierState {
+        private final NavigableMap<Long, Map<String, Histogram>> buckets = new TreeMap<>();
+        // alle Buckets vor diesem Zeitpunkt sind geschrieben
+        private long persistedUntil = 0;
+        // Buckets davor liegen nicht mehr im Speicher
+        private long evictedBefore = Long.MIN_VALUE;
+        private boolean headerWritten = false;
+    }
+
+    private final Vertx vertx;
+    private final String directory;
+    private final double resolution;
+    private final long maxGapMs;
+    private final SegmentWriter writer;
+    private final TimeWeighting weighting;
+    private final Map<Tier, TierState> tiers = new EnumMap<>(Tier.class);
+
+    /**
+     * @param resolution Klassenbreite der Histogramme, z.B. 0.1 °C
+     * @param maxGapMs   so lange gilt ein Wert höchstens ohne Nachfolger
+     */
+    public SketchStore(Vertx vertx, String directory, double resolution, long maxGapMs, WritePolicy writePolicy) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.resolution = resolution;
+        this.maxGapMs = maxGapMs;
+        this.writer = new SegmentWriter(vertx, writePolicy);
+        this.weighting = new TimeWeighting(maxGapMs);
+        for (Tier tier : Tier.values()) {
+            tiers.put(tier, new TierState());
+        }
+    }
+
+    public double resolution() {
+        return resolution;
+    }
+
+    public long maxGapMs() {
+        return maxGapMs;
+    }
+
+    /**
+     * Lädt die geschriebenen Histogramme. Wurde die Auflösung geändert, werden sie verworfen und neu berechnet.
+     *
+     * @return Zeitpunkt, ab dem die Rohdaten erneut eingespielt werden müssen ({@link #replay}),
+     * inklusive des Vorlaufs für den jeweils letzten Wert
+     */
+    public Future<Long> load() {
+        return vertx.executeBlocking(() -> {
+            synchronized (this) {
+                long hourWindow = TierCoverage.hourWindow(Instant.now().toEpochMilli());
+                long replayFrom = Long.MAX_VALUE;
+                for (Tier tier : Tier.values()) {
+                    TierState state = tiers.get(tier);
+                    state.buckets.clear();
+                    state.evictedBefore = tier == Tier.HOUR ? hourWindow : Long.MIN_VALUE;
+                    state.persistedUntil = readTier(tier, state);
+                    replayFrom = Math.min(replayFrom, state.persistedUntil);
+                }
+                if (replayFrom == 0) {
+                    Log.info("No histograms found in {}, rebuild from raw data", directory);
+                    return 0L;
+                }
+                return Math.max(0, replayFrom - maxGapMs);
+            }
+        });
+    }
+
+    public synchronized void add(long timestamp, String positionPath, double value) {
+        add(timestamp, positionPath, value, false);
+    }
+
+    /**
+     * Spielt einen Rohwert nach dem Start ein. Buckets, die bereits geschrieben sind, bleiben unverändert.
+     */
+    public synchronized void replay(long timestamp, String positionPath, double value) {
+        add(timestamp, positionPath, value, true);
+    }
+
+    /**
+     * Fasst [from, to] aus ganzen Tagen und Stunden zusammen.
+     * Ränder ohne ganze Stunde und Stunden außerhalb von {@link RollupStore#HOUR_WINDOW_MS} werden als Lücken geliefert.
+     *
+     * @param positionPaths aufgelöste Series, siehe {@link SeriesIndex#resolve}
+     */
+    public synchronized Coverage cover(long from, long to, Set<String> positionPaths) {
+        Histogram histogram = new Histogram(resolution);
+        List<RollupStore.Gap> gaps = TierCoverage.cover(from, to, tiers.get(Tier.HOUR).evictedBefore,
+                (tier, start, end) -> collect(tier, start, end, positionPaths, histogram));
+        return new Coverage(histogram, gaps);
+    }
+
+    /**
+     * Offene Buckets werden nicht geschrieben, sie entstehen beim nächsten Start aus den Rohdaten neu
+     */
+    public Future<Void> stop() {
+        return writer.close();
+    }
+
+    private void add(long timestamp, String positionPath, double value, boolean replay) {
+        weighting.accept(timestamp, positionPath, value,
+                (path, held, start, stop) -> addInterval(path, held, start, stop, replay));
+        long closeUntil = timestamp - maxGapMs;
+        for (Tier tier : Tier.values()) {
+            closeBuckets(tier, tiers.get(tier), tier.bucketOf(closeUntil));
+        }
+    }
+
+    /**
+     * Verteilt die Spanne auf die Stunden, die sie berührt
+     */
+    private void addInterval(String positionPath, double value, long start, long end, boolean replay) {
+        for (long from = start; from < end; ) {
+            long until = Math.min(end, Tier.HOUR.bucketOf(from) + HOUR_MS);
+            for (Tier tier : Tier.values()) {
+                addWeight(tier, tiers.get(tier), tier.bucketOf(from), positionPath, value, until - from, replay);
+            }
+            from = until;
+        }
+    }
+
+    private void addWeight(Tier tier, TierState state, long bucket, String positionPath, double value, long weight,
+                           boolean replay) {
+        if (bucket < state.persistedUntil) {
+            if (replay) return;
+            // Nachzügler für einen bereits geschriebenen Bucket
+            Histogram late = new Histogram(resolution);
+            late.add(value, weight);
+            write(tier, state, bucket, positionPath, late);
+        }
+        if (TierCoverage.evicted(bucket, state.persistedUntil, state.evictedBefore)) return;
+        state.buckets.computeIfAbsent(bucket, b -> new HashMap<>())
+                .computeIfAbsent(positionPath, p -> new Histogram(resolution))
+                .add(value, weight);
+    }
+
+    private void closeBuckets(Tier tier, TierState state, long until) {
+        if (until <= state.persistedUntil) return;
+        state.buckets.subMap(state.persistedUntil, true, until, false)
+                .forEach((bucket, histograms) -> histograms.forEach((path, histogram) ->
+                        write(tier, state, bucket, path, histogram)));
+        state.persistedUntil = until;
+        if (tier == Tier.HOUR) {
+            state.evictedBefore = TierCoverage.evictHours(state.buckets, state.evictedBefore, until);
+        }
+    }
+
+    private void write(Tier tier, TierState state, long bucket, String positionPath, Histogram histogram) {
+        StringBuilder row = new StringBuilder();
+        if (!state.headerWritten) {
+            row.append(HEADER).append(';').append(resolution).append('\n');
+            state.headerWritten = true;
+        }
+        row.append(bucket).append(';').append(histogram.min()).append(';').append(histogram.max()).append(';')
+                .append(histogram.classesToString()).append(';').append(positionPath).append('\n');
+        writer.append(fileOf(tier).toString(), Buffer.buffer(row.toString()))
+                .onFailure(cause -> Log.error("Write {} histogram failed in {}", tier, directory, cause));
+    }
+
+    private Path fileOf(Tier tier) {
+        return Path.of(directory, tier.name().toLowerCase() + ".sketch");
+    }
+
+    private void collect(Tier tier, long from, long to, Set<String> positionPaths, Histogram target) {
+        if (positionPaths.isEmpty()) return;
+        for (Map<String, Histogram> histograms : tiers.get(tier).buckets.subMap(from, true, to, false).values()) {
+            if (positionPaths.size() < histograms.size()) {
+                for (String path : positionPaths) {
+                    Histogram histogram = histograms.get(path);
+                    if (histogram != null) {
+                        target.merge(histogram);
+                    }
+                }
+            } else {
+                histograms.forEach((path, histogram) -> {
+                    if (positionPaths.contains(path)) {
+                        target.merge(histogram);
+                    }
+                });
+            }
+        }
+    }
+
+    private long readTier(Tier tier, TierState state) throws IOException {
+        Path file = fileOf(tier);
+        if (!Files.exists(file)) return 0;
+        long persistedUntil = 0;
+        long span = tier.span();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER + ";" + resolution)) {
+                Log.info("Histogram resolution of {} changed, rebuild from raw data", file);
+                Files.move(file, file.resolveSibling(file.getFileName() + ".obsolete"), StandardCopyOption.REPLACE_EXISTING);
+                state.buckets.clear();
+                return 0;
+            }
+            state.headerWritten = true;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";", 5);
+                if (parts.length != 5) continue;
+                try {
+                    long bucket = Long.parseLong(parts[0]);
+                    persistedUntil = Math.max(persistedUntil, bucket + span);
+                    if (bucket < state.evictedBefore) continue;
+                    Histogram histogram = Histogram.parse(resolution, Double.parseDouble(parts[1]),
+                            Double.parseDouble(parts[2]), parts[3]);
+                    state.buckets.computeIfAbsent(bucket, b -> new HashMap<>())
+                            .merge(SeriesDictionary.normalize(parts[4]), histogram, Histogram::merge);
+                } catch (NumberFormatException e) {
+                    Log.warn("Skip invalid histogram row '{}' in {}", line, file);
+                }
+            }
+        }
+        return persistedUntil;
+    }
+}
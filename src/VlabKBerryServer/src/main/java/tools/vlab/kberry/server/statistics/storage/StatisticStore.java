@@ -0,0 +1,51 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import io.vertx.core.Future;
+
+import java.util.function.Predicate;
+
+/**
+ * Ablage der Werte einer Statistik
+ */
+public interface StatisticStore<T> {
+
+    Future<Void> start();
+
+    Future<Void> append(long timestamp, T value);
+
+    /**
+     * Liefert alle Werte mit from <= timestamp <= to in zeitlicher Reihenfolge der Segmente
+     */
+    default Future<Void> scan(long from, long to, SampleConsumer consumer) {
+        return scan(from, to, path -> true, consumer);
+    }
+
+    /**
+     * Wie {@link #scan(long, long, SampleConsumer)}, aber nur für Series, deren normalisierter Pfad
+     * zum Filter passt. Der Filter wird vor dem Scan auf Series-IDs aufgelöst.
+     */
+    Future<Void> scan(long from, long to, Predicate<String> positionPaths, SampleConsumer consumer);
+
+    /**
+     * Beginn des ältesten Segments mit Rohdaten, Long.MAX_VALUE ohne Rohdaten.
+     * Davor liegen nach dem Entfernen abgelaufener Segmente nur noch verdichtete Werte.
+     */
+    long firstTimestamp();
+
+    /**
+     * Entfernt alle Werte älter als from
+     */
+    Future<Void> clean(long from);
+
+    /**
+     * Entfernt ganze Segmente, die vollständig vor cutoff enden, ohne Schreibvorgänge aufzuhalten
+     *
+     * @return Anzahl entfernter Segmente
+     */
+    Future<Integer> expire(long cutoff);
+
+    /**
+     * Schreibt ausstehende Werte und schließt offene Dateien
+     */
+    Future<Void> stop();
+}
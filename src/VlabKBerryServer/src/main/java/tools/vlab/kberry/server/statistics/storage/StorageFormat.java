@@ -0,0 +1,18 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+public enum StorageFormat {
+    /**
+     * Textzeilen "timestamp;series-id;wert" in Tages-Segmenten, die Pfade stehen im {@link SeriesDictionary}.
+     * Ältere Zeilen "timestamp;pfad=wert" werden weiterhin gelesen.
+     */
+    CSV,
+    /**
+     * Feste 20-Byte-Records (timestamp, series id, wert), gelesen über MappedByteBuffer
+     */
+    BINARY,
+    /**
+     * Laufender Tag wie BINARY, abgeschlossene Tage als Gorilla-Blöcke (Delta der Deltas, XOR-Werte).
+     * Übernimmt vorhandene CSV- und BINARY-Daten, ein Wechsel zurück ist nicht vorgesehen.
+     */
+    GORILLA,
+}
@@ -0,0 +1,92 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import tools.vlab.kberry.server.statistics.storage.RollupStore.Gap;
+import tools.vlab.kberry.server.statistics.storage.RollupStore.Tier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+
+/**
+ * Zerlegt einen Zeitraum in ganze Tage und Stunden, gemeinsam für {@link RollupStore} und {@link SketchStore}.
+ * Ränder ohne ganze Stunde und Stunden vor dem Stundenfenster werden als Lücken geliefert.
+ * Verwaltet auch das Stundenfenster ({@link RollupStore#HOUR_WINDOW_MS}) beider Stores.
+ */
+final class TierCoverage {
+
+    /**
+     * Fasst die Buckets der Stufe zusammen, die in [from, to) beginnen
+     */
+    @FunctionalInterface
+    interface Collector {
+        void collect(Tier tier, long from, long to);
+    }
+
+    private TierCoverage() {
+    }
+
+    /**
+     * @param to        inklusive, Long.MAX_VALUE ohne Ende
+     * @param hoursFrom Stunden davor liegen nicht mehr im Speicher
+     * @return die nicht abgedeckten Ränder
+     */
+    static List<Gap> cover(long from, long to, long hoursFrom, Collector collector) {
+        long end = to == Long.MAX_VALUE ? to : to + 1;
+        List<Gap> gaps = new ArrayList<>();
+        long dayStart = Tier.DAY.ceil(from);
+        long dayEnd = Tier.DAY.bucketOf(end);
+        if (dayStart < dayEnd) {
+            collector.collect(Tier.DAY, dayStart, dayEnd);
+            coverHours(from, dayStart, hoursFrom, collector, gaps);
+            coverHours(dayEnd, end, hoursFrom, collector, gaps);
+        } else {
+            coverHours(from, end, hoursFrom, collector, gaps);
+        }
+        return gaps;
+    }
+
+    /**
+     * Beginn des Stundenfensters, das bis until reicht
+     */
+    static long hourWindow(long until) {
+        return Tier.DAY.bucketOf(until - RollupStore.HOUR_WINDOW_MS);
+    }
+
+    /**
+     * Ein Bucket wird nur noch geschrieben, wenn er bereits geschrieben ist und vor dem Fenster liegt.
+     * Beim Nachrechnen vor dem Fenster entstandene Buckets bleiben bis zum Schreiben im Speicher.
+     */
+    static boolean evicted(long bucket, long persistedUntil, long evictedBefore) {
+        return bucket < persistedUntil && bucket < evictedBefore;
+    }
+
+    /**
+     * Schiebt das Stundenfenster nach dem Schreiben bis until vor und entfernt die geschriebenen Stunden davor
+     *
+     * @return neuer Beginn des Fensters
+     */
+    static <V> long evictHours(NavigableMap<Long, V> buckets, long evictedBefore, long until) {
+        long window = Math.max(evictedBefore, hourWindow(until));
+        buckets.headMap(Math.min(window, until), false).clear();
+        return window;
+    }
+
+    private static void coverHours(long from, long to, long hoursFrom, Collector collector, List<Gap> gaps) {
+        if (from >= to) return;
+        long hourStart = Math.max(Tier.HOUR.ceil(from), Math.min(hoursFrom, to));
+        long hourEnd = Math.max(hourStart, Tier.HOUR.bucketOf(to));
+        if (hourStart < hourEnd) {
+            collector.collect(Tier.HOUR, hourStart, hourEnd);
+            addGap(from, hourStart, gaps);
+            addGap(hourEnd, to, gaps);
+        } else {
+            addGap(from, to, gaps);
+        }
+    }
+
+    private static void addGap(long from, long to, List<Gap> gaps) {
+        if (from < to) {
+            gaps.add(new Gap(from, to - 1));
+        }
+    }
+}
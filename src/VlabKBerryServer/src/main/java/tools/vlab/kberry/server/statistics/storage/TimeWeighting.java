@@ -0,0 +1,57 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Macht aus Einzelwerten je Series Zeitspannen: ein Wert gilt bis zum nächsten Wert derselben Series,
+ * höchstens aber maxGapMs lang. Ältere Werte als der zuletzt gesehene werden ignoriert.
+ */
+public final class TimeWeighting {
+
+    @FunctionalInterface
+    public interface IntervalConsumer {
+
+        /**
+         * value galt in [from, to)
+         */
+        void accept(String positionPath, double value, long from, long to);
+    }
+
+    private record Last(long timestamp, double value) {
+    }
+
+    private final long maxGapMs;
+    private final Map<String, Last> last = new HashMap<>();
+
+    public TimeWeighting(long maxGapMs) {
+        this.maxGapMs = maxGapMs;
+    }
+
+    /**
+     * Schließt die Spanne des vorherigen Werts der Series ab
+     */
+    public void accept(long timestamp, String positionPath, double value, IntervalConsumer target) {
+        Last previous = last.get(positionPath);
+        if (previous != null) {
+            if (timestamp < previous.timestamp()) return;
+            emit(positionPath, previous, timestamp, target);
+        }
+        last.put(positionPath, new Last(timestamp, value));
+    }
+
+    /**
+     * Schließt die offenen Spannen aller Series bei until ab
+     */
+    public void finish(long until, IntervalConsumer target) {
+        last.forEach((positionPath, previous) -> emit(positionPath, previous, until, target));
+    }
+
+    private void emit(String positionPath, Last previous, long until, IntervalConsumer target) {
+        if (Double.isNaN(previous.value())) return;
+        long end = Math.min(until, previous.timestamp() + maxGapMs);
+        if (end > previous.timestamp()) {
+            target.accept(positionPath, previous.value(), previous.timestamp(), end);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package tools.vlab.kberry.server.statistics.storage;
+
+/**
+ * Steuert, wann gesammelte Zeilen geschrieben und auf die SD-Karte gebracht werden.
+ *
+ * @param commitDelayMs Wartezeit, in der weitere Zeilen für denselben Schreibvorgang gesammelt werden.
+ *                      0 = am Ende des aktuellen Event-Loop-Durchlaufs
+ * @param fsync         nach jedem Schreibvorgang auf den Datenträger synchronisieren
+ */
+public record WritePolicy(long commitDelayMs, boolean fsync) {
+
+    /**
+     * Alle Zeilen eines Ticks in einem Schreibvorgang, ohne fsync
+     */
+    public static final WritePolicy GROUP_COMMIT = new WritePolicy(0, false);
+
+    /**
+     * Wie GROUP_COMMIT, aber jeder Schreibvorgang wird synchronisiert
+     */
+    public static final WritePolicy DURABLE = new WritePolicy(0, true);
+
+    public WritePolicy {
+        if (commitDelayMs < 0) {
+            throw new IllegalArgumentException("commitDelayMs must not be negative: " + commitDelayMs);
+        }
+    }
+}